@@ -0,0 +1,182 @@
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAKey;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Decides whether a login may have RSA spent on it before any is. A HELLO must be exactly one RSA block and a LOGIN
+ * fit in a login's size, or the session fails as malformed. Each source address draws from a token bucket, so one
+ * host retrying in a loop is told BUSY instead of getting a handshake. Failed logins for a registration number are
+ * charged to a bucket per number and source address, so guessing at a voter's login from one host is slowed down
+ * while the voter, logging in correctly from their own booth, is never locked out.
+ * In threads mode at most cryptoThreads logins do RSA at once with up to cryptoQueue more waiting their turn, the
+ * counterpart of the nio crypto stage; a new handshake beyond that is turned away at once rather than queued.
+ */
+class Admission {
+    static final int MAX_LOGIN = 2048; // Sealed name, registration number and signature
+    private static final int MAX_TRACKED = 65536;
+    private static final long SWEEP_INTERVAL = 1000000000L;
+
+    // Holds up to burst tokens and gains rate tokens a second, a full bucket is the same as no bucket
+    private static class Bucket {
+        private double tokens;
+        private long refilled;
+
+        Bucket(double burst, long now) {
+            this.tokens = burst;
+            this.refilled = now;
+        }
+
+        synchronized boolean take(double rate, double burst, long now) {
+            this.tokens = Math.min(burst, this.tokens + (now - this.refilled) * rate / 1e9);
+            this.refilled = now;
+            if (this.tokens < 1) {
+                return false;
+            }
+            this.tokens--;
+            return true;
+        }
+
+        synchronized boolean hasToken(double rate, double burst, long now) {
+            return Math.min(burst, this.tokens + (now - this.refilled) * rate / 1e9) >= 1;
+        }
+
+        synchronized boolean isFull(double rate, double burst, long now) {
+            return this.tokens + (now - this.refilled) * rate / 1e9 >= burst;
+        }
+    }
+
+    private static class Buckets<K> {
+        private final double rate;
+        private final double burst;
+        private final ConcurrentHashMap<K, Bucket> buckets = new ConcurrentHashMap<K, Bucket>();
+        private volatile long nextSweep;
+
+        Buckets(double rateIn, double burstIn) {
+            this.rate = rateIn;
+            this.burst = Math.max(1, burstIn);
+        }
+
+        boolean take(K key) {
+            if (this.rate <= 0) {
+                return true; // Unlimited
+            }
+            long now = System.nanoTime();
+            Bucket bucket = this.buckets.get(key);
+            if (bucket == null) {
+                if (this.buckets.size() >= MAX_TRACKED && now - this.nextSweep >= 0) {
+                    this.sweep(now);
+                }
+                bucket = this.buckets.computeIfAbsent(key, k -> new Bucket(this.burst, now));
+            }
+            return bucket.take(this.rate, this.burst, now);
+        }
+
+        // Whether take() would succeed now, without spending anything
+        boolean hasToken(K key) {
+            if (this.rate <= 0) {
+                return true;
+            }
+            Bucket bucket = this.buckets.get(key);
+            return bucket == null || bucket.hasToken(this.rate, this.burst, System.nanoTime());
+        }
+
+        // Forgets buckets that have refilled, so a flood of new keys costs memory only for about burst / rate seconds
+        private void sweep(long now) {
+            this.nextSweep = now + SWEEP_INTERVAL;
+            this.buckets.values().removeIf(bucket -> bucket.isFull(this.rate, this.burst, now));
+        }
+    }
+
+    private static class VoterSource {
+        private final long vnumber;
+        private final InetAddress address;
+
+        VoterSource(long vnumberIn, InetAddress addressIn) {
+            this.vnumber = vnumberIn;
+            this.address = addressIn;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof VoterSource && ((VoterSource) other).vnumber == this.vnumber
+                    && Objects.equals(((VoterSource) other).address, this.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(this.vnumber) * 31 + Objects.hashCode(this.address);
+        }
+    }
+
+    private final int helloLength;
+    private final Buckets<InetAddress> addresses;
+    private final Buckets<VoterSource> vnumbers;
+    private final Semaphore cryptoSlots;
+    private final int queueLimit;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    Admission(PublicKey serverKey, double addressRate, double addressBurst, double voterRate, double voterBurst,
+            int cryptoThreads, int cryptoQueue) {
+        this.helloLength = (((RSAKey) serverKey).getModulus().bitLength() + 7) / 8;
+        this.addresses = new Buckets<InetAddress>(addressRate, addressBurst);
+        this.vnumbers = new Buckets<VoterSource>(voterRate, voterBurst);
+        this.cryptoSlots = new Semaphore(cryptoThreads);
+        this.queueLimit = cryptoQueue;
+    }
+
+    // Size checks that need nothing but the frame, run before it is queued for RSA
+    void checkSize(Protocol.Frame request) throws ProtocolException {
+        if (request.type == Protocol.HELLO && request.payload.length != this.helloLength) {
+            throw new ProtocolException("Wrapped session key of " + request.payload.length + " bytes, expected "
+                    + this.helloLength);
+        } else if ((request.type == Protocol.LOGIN || request.type == Protocol.TALLY)
+                && request.payload.length > MAX_LOGIN) {
+            throw new ProtocolException("Login of " + request.payload.length + " bytes is larger than "
+                    + MAX_LOGIN);
+        }
+    }
+
+    boolean admitAddress(InetAddress address) {
+        return address == null || this.addresses.take(address);
+    }
+
+    // Checked before the signature, a source whose logins for this voter keep failing costs no RSA
+    boolean admitVoter(String vnumber, InetAddress address) {
+        long key = VoterRegistry.parseKey(vnumber);
+        return key == VoterRegistry.NO_KEY || this.vnumbers.hasToken(new VoterSource(key, address));
+    }
+
+    // Charged only for a refused login, so a third party cannot use up a voter's logins for them
+    void voterFailed(String vnumber, InetAddress address) {
+        long key = VoterRegistry.parseKey(vnumber);
+        if (key != VoterRegistry.NO_KEY) {
+            this.vnumbers.take(new VoterSource(key, address));
+        }
+    }
+
+    // Threads mode only. A LOGIN always waits for a slot, its handshake has already been paid for; a HELLO finding
+    // the queue full is refused. Every true must be matched by leave()
+    boolean enter(boolean handshake) {
+        if (this.cryptoSlots.tryAcquire()) {
+            return true;
+        }
+        if (this.waiting.incrementAndGet() > this.queueLimit && handshake) {
+            this.waiting.decrementAndGet();
+            return false;
+        }
+        long started = System.nanoTime();
+        this.cryptoSlots.acquireUninterruptibly();
+        this.waiting.decrementAndGet();
+        Metrics.CRYPTO_QUEUE.recordSince(started);
+        return true;
+    }
+
+    void leave() {
+        this.cryptoSlots.release();
+    }
+}
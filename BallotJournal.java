@@ -0,0 +1,547 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/*
+ * Every batch ends with a commit line in ballots giving the length of history once the batch's records are in it.
+ * The line is written only after those records are forced, so a batch counts once its commit line is in ballots
+ * and recover() can cut off a batch a crash left in one file but not the other.
+ */
+class BallotJournal {
+    private static final long CLOSE_TIMEOUT = 10000;
+    static final String COMMIT = "#commit ";
+
+    enum Durability {
+        SYNC,  // every vote waits until the batch holding it has been forced to disk
+        ASYNC, // batches are forced to disk but votes return as soon as they are queued
+        NONE   // batches are written but left to the OS to flush
+    }
+
+    enum Outcome {
+        CAST,          // recorded, and durable as far as the durability asks
+        ALREADY_VOTED,
+        UNCONFIRMED    // recorded here but not durable within the commit timeout, e.g. held for a lost standby
+    }
+
+    // A sync vote cast without blocking, told its outcome once it is durable or its deadline passes
+    private static class Waiter {
+        final long sequence;
+        final long deadline;
+        final Consumer<Outcome> done;
+        Outcome outcome;
+
+        Waiter(long sequenceIn, long deadlineIn, Consumer<Outcome> doneIn) {
+            this.sequence = sequenceIn;
+            this.deadline = deadlineIn;
+            this.done = doneIn;
+        }
+    }
+
+    private final Durability durability;
+    private final long compactInterval;
+    private final long snapshotInterval;
+    private final long commitTimeout;
+    private final VoterRegistry voters;
+    private final HashMap<String, Integer> committed;
+    private final Object lock = new Object();
+    private ArrayList<String> pendingHistory = new ArrayList<String>();
+    private ArrayList<String> pendingBallots = new ArrayList<String>();
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>(); // In sequence order, so also deadline order
+    private long appended;
+    private long written;   // forced to disk here
+    private long replicated = Long.MAX_VALUE; // acknowledged by the standby, unbounded while none is attached
+    private long durable;
+    private boolean closed;
+    private Replication replication;
+    private boolean stateWanted;
+
+    private FileChannel history;
+    private FileChannel ballots;
+    private long generation;
+    private long lastCompact;
+    private int ballotsSinceCompact;
+    private long lastSnapshot;
+    private boolean snapshotStale = true;
+    private Thread committer;
+
+    BallotJournal(Map<String, Integer> loaded, VoterRegistry votersIn, Durability durability, long compactInterval,
+            long snapshotInterval, long commitTimeout) {
+        this.durability = durability;
+        this.compactInterval = compactInterval;
+        this.snapshotInterval = snapshotInterval;
+        this.commitTimeout = commitTimeout;
+        this.voters = votersIn;
+        this.committed = new HashMap<String, Integer>(loaded);
+        try {
+            this.history = FileChannel.open(Paths.get("history"),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            this.ballots = FileChannel.open(Paths.get("ballots"),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            long snapshotGeneration = ServerUtil.readGeneration("result");
+            long journalGeneration = ServerUtil.readGeneration("ballots");
+            if (journalGeneration > snapshotGeneration) {
+                this.generation = journalGeneration;
+            } else {
+                this.startGeneration(snapshotGeneration + 1);
+            }
+        } catch (IOException ex) {
+            ServerUtil.handleException(ex, "I/O Error occurred while opening history or ballots journal");
+        }
+        this.lastCompact = System.currentTimeMillis();
+        this.lastSnapshot = this.lastCompact;
+        this.committer = new Thread(this::commitLoop, "ballot-journal");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    // Marks the voter as voted and queues their records under one lock, so anyone a snapshot's scan finds voted after
+    // the batch it was cut at is still pending when the scan ends. A sync vote waits at most the commit timeout, so
+    // a booth is told its vote is unconfirmed rather than left hanging while the primary is fenced.
+    Outcome castVote(Voter voter, String candidate) {
+        long sequence;
+        synchronized (this.lock) {
+            if (!voter.castVote()) {
+                return Outcome.ALREADY_VOTED;
+            }
+            sequence = this.append(voter, candidate);
+            if (this.durability != Durability.SYNC) {
+                return Outcome.CAST;
+            }
+            long deadline = System.currentTimeMillis() + this.commitTimeout;
+            try {
+                while (this.durable < sequence) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        Metrics.BALLOTS_UNCONFIRMED.increment();
+                        return Outcome.UNCONFIRMED;
+                    }
+                    this.lock.wait(remaining);
+                }
+            } catch (InterruptedException ex) {
+                ServerUtil.handleException(ex, "Interrupted while waiting for ballot to be committed");
+            }
+        }
+        return Outcome.CAST;
+    }
+
+    // The same without blocking, for a selector thread: done is called with the outcome by whichever thread settles
+    // it, this one included, so it should only hand the outcome back to the caller's own thread
+    void castVote(Voter voter, String candidate, Consumer<Outcome> done) {
+        Outcome outcome;
+        synchronized (this.lock) {
+            if (!voter.castVote()) {
+                outcome = Outcome.ALREADY_VOTED;
+            } else {
+                long sequence = this.append(voter, candidate);
+                if (this.durability == Durability.SYNC) {
+                    this.waiters.add(new Waiter(sequence, System.currentTimeMillis() + this.commitTimeout, done));
+                    return;
+                }
+                outcome = Outcome.CAST;
+            }
+        }
+        done.accept(outcome);
+    }
+
+    private long append(Voter voter, String candidate) {
+        this.pendingHistory.add(voter.getVnumber() + " " + voter.getVoteTime() + "\n");
+        this.pendingBallots.add(candidate + "\n");
+        this.lock.notifyAll();
+        return ++this.appended;
+    }
+
+    // Under the lock: takes the waiters that are durable or past their deadline, to be told outside it
+    private List<Waiter> settled() {
+        if (this.waiters.isEmpty()) {
+            return List.of();
+        }
+        ArrayList<Waiter> settled = new ArrayList<Waiter>();
+        long now = System.currentTimeMillis();
+        while (!this.waiters.isEmpty()) {
+            Waiter waiter = this.waiters.peek();
+            if (waiter.sequence <= this.durable) {
+                waiter.outcome = Outcome.CAST;
+            } else if (waiter.deadline <= now) {
+                Metrics.BALLOTS_UNCONFIRMED.increment();
+                waiter.outcome = Outcome.UNCONFIRMED;
+            } else {
+                break;
+            }
+            settled.add(this.waiters.poll());
+        }
+        return settled;
+    }
+
+    private static void tell(List<Waiter> settled) {
+        for (Waiter waiter : settled) {
+            waiter.done.accept(waiter.outcome);
+        }
+    }
+
+    // A batch streamed from the primary: marks the voters with the primary's vote times and queues both kinds of
+    // record like local votes. Returns the sequence to pass to awaitDurable().
+    long replay(List<Voter> voted, List<String> voteTimes, List<String> candidates) {
+        synchronized (this.lock) {
+            for (int i = 0; i < voted.size(); i++) {
+                Voter voter = voted.get(i);
+                voter.setVoteTime(voteTimes.get(i));
+                voter.setVoted();
+                this.pendingHistory.add(voter.getVnumber() + " " + voteTimes.get(i) + "\n");
+            }
+            for (String candidate : candidates) {
+                this.pendingBallots.add(candidate + "\n");
+            }
+            this.lock.notifyAll();
+            return ++this.appended;
+        }
+    }
+
+    void awaitDurable(long sequence) throws InterruptedException {
+        synchronized (this.lock) {
+            while (this.durable < sequence) {
+                this.lock.wait();
+            }
+        }
+    }
+
+    void replicateTo(Replication replicationIn) {
+        synchronized (this.lock) {
+            this.replication = replicationIn;
+        }
+    }
+
+    // A standby has attached: the next batch hands it the full voted set and counts, and from then on sync votes
+    // also wait for its acknowledgement, of that state first
+    void requestState() {
+        synchronized (this.lock) {
+            this.stateWanted = true;
+            this.lock.notifyAll();
+        }
+    }
+
+    void replicaAcknowledged(long sequence) {
+        List<Waiter> settled;
+        synchronized (this.lock) {
+            if (sequence <= this.replicated) {
+                return;
+            }
+            this.replicated = sequence;
+            this.durable = Math.min(this.written, this.replicated);
+            this.lock.notifyAll();
+            settled = this.settled();
+        }
+        tell(settled);
+    }
+
+    // Without a standby the primary carries on alone, except with sync durability once a standby has been in sync:
+    // it may be about to take over, and a vote confirmed here but missing from its history would be lost or counted
+    // twice. Those votes stay unconfirmed until a standby attaches and is sent the state again. Returns true then
+    boolean replicaDetached() {
+        List<Waiter> settled;
+        synchronized (this.lock) {
+            this.stateWanted = false;
+            if (this.durability == Durability.SYNC && this.replicated != Long.MAX_VALUE) {
+                return true;
+            }
+            this.replicated = Long.MAX_VALUE;
+            this.durable = this.written;
+            this.lock.notifyAll();
+            settled = this.settled();
+        }
+        tell(settled);
+        return false;
+    }
+
+    private void commitLoop() {
+        ArrayList<String> historyBatch = new ArrayList<String>();
+        ArrayList<String> ballotBatch = new ArrayList<String>();
+        while (true) {
+            long sequence;
+            boolean stopping;
+            boolean snapshotting;
+            boolean sendingState;
+            Replication replica;
+            List<Waiter> expired;
+            synchronized (this.lock) {
+                try {
+                    while (this.pendingHistory.isEmpty() && !this.closed && !this.compactDue() && !this.stateWanted
+                            && !this.snapshotDue(false, false) && !this.waiterExpired()) {
+                        this.lock.wait(this.idleWait());
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                expired = this.settled();
+                ArrayList<String> swap = this.pendingHistory;
+                this.pendingHistory = historyBatch;
+                historyBatch = swap;
+                swap = this.pendingBallots;
+                this.pendingBallots = ballotBatch;
+                ballotBatch = swap;
+                sequence = this.appended;
+                stopping = this.closed;
+                snapshotting = this.snapshotDue(stopping, !historyBatch.isEmpty());
+                replica = this.replication;
+                sendingState = this.stateWanted;
+                if (sendingState) {
+                    // Same boundary as the snapshot: the standby's state covers exactly the votes up to sequence,
+                    // which count as replicated only once it acknowledges that sequence. Votes held for a lost
+                    // standby stay held until then.
+                    this.replicated = Math.min(this.replicated, this.written);
+                    this.stateWanted = false;
+                }
+            }
+            tell(expired);
+            int[] votedKeys = snapshotting || sendingState ? this.votedAtCut() : null;
+
+            try {
+                if (!historyBatch.isEmpty()) {
+                    // Ballots are shuffled within a batch so their order does not line up with history
+                    Collections.shuffle(ballotBatch);
+                    write(this.history, historyBatch);
+                    write(this.ballots, ballotBatch);
+                    if (replica != null && !sendingState) {
+                        // Sent before forcing, so the standby's round trip overlaps the fsync here
+                        replica.send(sequence, historyBatch, ballotBatch);
+                    }
+                    long started = System.nanoTime();
+                    if (this.durability != Durability.NONE) {
+                        this.history.force(false);
+                    }
+                    this.writeCommit();
+                    if (this.durability != Durability.NONE) {
+                        this.ballots.force(false);
+                        Metrics.JOURNAL_FSYNC.recordSince(started);
+                    }
+                    Metrics.JOURNAL_BATCHES.increment();
+                    for (String ballot : ballotBatch) {
+                        this.committed.merge(ballot.substring(0, ballot.length() - 1), 1, Integer::sum);
+                    }
+                    this.ballotsSinceCompact += ballotBatch.size();
+                    historyBatch.clear();
+                    ballotBatch.clear();
+                }
+                if (sendingState) {
+                    replica.sendState(sequence, this.voters, votedKeys, this.committed);
+                }
+                if (snapshotting) {
+                    // The snapshot carries the tally as of a fresh result generation, so compact first
+                    this.compact();
+                    Snapshot.write("snapshot", "voterinfo", this.voters, votedKeys, this.history.size(),
+                            this.generation - 1, this.committed);
+                    this.snapshotStale = false;
+                    this.lastSnapshot = System.currentTimeMillis();
+                } else if (this.compactDue() || (stopping && this.ballotsSinceCompact > 0)) {
+                    this.compact();
+                }
+            } catch (IOException ex) {
+                ServerUtil.handleException(ex, "I/O Error occurred while committing ballot journal");
+            }
+
+            List<Waiter> settled;
+            boolean finished;
+            synchronized (this.lock) {
+                this.written = sequence;
+                this.durable = Math.min(sequence, this.replicated);
+                this.lock.notifyAll();
+                settled = this.settled();
+                finished = stopping && this.pendingHistory.isEmpty();
+            }
+            tell(settled);
+            if (finished) {
+                return;
+            }
+        }
+    }
+
+    // The voters whose records are in the batch just taken or earlier. The roll is scanned without the lock so votes
+    // keep being cast meanwhile; whoever voted after the cut is still pending at the end, and is taken back out
+    private int[] votedAtCut() {
+        int[] scanned = Snapshot.votedKeys(this.voters);
+        int[] later;
+        synchronized (this.lock) {
+            later = new int[this.pendingHistory.size()];
+            for (int i = 0; i < later.length; i++) {
+                String record = this.pendingHistory.get(i);
+                later[i] = (int) VoterRegistry.parseKey(record.substring(0, record.indexOf(' ')));
+            }
+        }
+        if (later.length == 0) {
+            return scanned;
+        }
+        Arrays.sort(later);
+        int[] kept = new int[scanned.length];
+        int count = 0;
+        for (int key : scanned) {
+            if (Arrays.binarySearch(later, key) < 0) {
+                kept[count++] = key;
+            }
+        }
+        return Arrays.copyOf(kept, count);
+    }
+
+    private boolean waiterExpired() {
+        return !this.waiters.isEmpty() && this.waiters.peek().deadline <= System.currentTimeMillis();
+    }
+
+    // How long an idle committer sleeps: until a compaction or snapshot with something to do falls due, or the
+    // oldest waiting vote's deadline
+    private long idleWait() {
+        long now = System.currentTimeMillis();
+        long wait = this.compactInterval;
+        if (this.ballotsSinceCompact > 0) {
+            wait = Math.min(wait, this.lastCompact + this.compactInterval - now);
+        }
+        if (this.snapshotStale && this.snapshotInterval > 0) {
+            wait = Math.min(wait, this.lastSnapshot + this.snapshotInterval - now);
+        }
+        if (!this.waiters.isEmpty()) {
+            wait = Math.min(wait, this.waiters.peek().deadline - now);
+        }
+        return Math.max(1, wait);
+    }
+
+    private boolean snapshotDue(boolean stopping, boolean voted) {
+        this.snapshotStale |= voted;
+        return this.snapshotStale && (stopping || (this.snapshotInterval > 0
+                && System.currentTimeMillis() - this.lastSnapshot >= this.snapshotInterval));
+    }
+
+    private boolean compactDue() {
+        return this.ballotsSinceCompact > 0
+                && System.currentTimeMillis() - this.lastCompact >= this.compactInterval;
+    }
+
+    private void writeCommit() throws IOException {
+        write(this.ballots, List.of(COMMIT + this.history.size() + "\n"));
+    }
+
+    // Run before the roll and tally are loaded. Anything past the last commit line in ballots, and anything in
+    // history past the length that line gives, belongs to a batch that never finished and is cut off in both.
+    // Journals without commit lines, written before they existed, are left as they are.
+    static void recover(String historyFile, String ballotsFile) {
+        Path historyPath = Paths.get(historyFile);
+        Path ballotsPath = Paths.get(ballotsFile);
+        if (!Files.exists(historyPath) || !Files.exists(ballotsPath)) {
+            return;
+        }
+        try (FileChannel history = FileChannel.open(historyPath, StandardOpenOption.WRITE);
+                FileChannel ballots = FileChannel.open(ballotsPath, StandardOpenOption.WRITE)) {
+            long historySize = history.size();
+            long ballotsEnd = -1;
+            long historyEnd = -1;
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(ballotsPath))) {
+                StringBuilder line = new StringBuilder();
+                long position = 0;
+                int next;
+                while ((next = in.read()) >= 0) {
+                    position++;
+                    if (next != '\n') {
+                        if (line.length() <= COMMIT.length() + 20) {
+                            line.append((char) next);
+                        }
+                        continue;
+                    }
+                    if (line.indexOf(COMMIT) == 0) {
+                        long end = Long.parseLong(line.substring(COMMIT.length()).trim());
+                        if (end > historySize) {
+                            break; // Only possible without fsync: the OS kept the ballots but lost their history
+                        }
+                        ballotsEnd = position;
+                        historyEnd = end;
+                    }
+                    line.setLength(0);
+                }
+            }
+            if (historyEnd < 0) {
+                return;
+            }
+            if (ballots.size() > ballotsEnd) {
+                System.out.println("Dropping " + (ballots.size() - ballotsEnd) + " bytes of uncommitted ballots");
+                ballots.truncate(ballotsEnd);
+                ballots.force(false);
+            }
+            if (historySize > historyEnd) {
+                System.out.println("Dropping " + (historySize - historyEnd) + " bytes of uncommitted history");
+                history.truncate(historyEnd);
+                history.force(false);
+            }
+        } catch (NumberFormatException ex) {
+            ServerUtil.handleException(ex, "Invalid commit line in " + ballotsFile);
+        } catch (IOException ex) {
+            ServerUtil.handleException(ex, "I/O Error occurred while recovering history and ballots journal");
+        }
+    }
+
+    private static void write(FileChannel channel, List<String> lines) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void startGeneration(long next) throws IOException {
+        this.ballots.truncate(0);
+        ByteBuffer header = ByteBuffer.wrap(("# " + next + "\n").getBytes(StandardCharsets.UTF_8));
+        while (header.hasRemaining()) {
+            this.ballots.write(header);
+        }
+        this.writeCommit(); // Everything in history so far is covered by the result
+        this.ballots.force(false);
+        this.generation = next;
+    }
+
+    private void compact() throws IOException {
+        Path snapshot = Paths.get("result.tmp");
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add("# " + this.generation + "\n");
+        for (Map.Entry<String, Integer> entry : this.committed.entrySet()) {
+            lines.add(entry.getKey() + " " + entry.getValue() + "\n");
+        }
+        try (FileChannel out = FileChannel.open(snapshot, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(out, lines);
+            out.force(true);
+        }
+        Files.move(snapshot, Paths.get("result"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        this.startGeneration(this.generation + 1);
+        this.ballotsSinceCompact = 0;
+        this.lastCompact = System.currentTimeMillis();
+    }
+
+    void close() {
+        synchronized (this.lock) {
+            this.closed = true;
+            this.lock.notifyAll();
+        }
+        try {
+            this.committer.join(CLOSE_TIMEOUT);
+            this.history.close();
+            this.ballots.close();
+        } catch (InterruptedException ex) {
+            ServerUtil.handleException(ex, "Interrupted while waiting for ballot journal to close");
+        } catch (IOException ex) {
+            ServerUtil.handleException(ex, "I/O Error occurred while closing history or ballots journal");
+        }
+    }
+}
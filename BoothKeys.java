@@ -0,0 +1,320 @@
+import java.io.Console;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Pre-provisioned booth key pairs, so a booth loads its voter's key instead of generating one on first use.
+ * Layout of the file, all integers big-endian:
+ *   magic (4) | entry count (4) | PBKDF2 iterations (4) | salt (16)
+ *   index, sorted by registration number: vnumber (4) | data offset (8) | public length (2) | sealed length (2)
+ *   data: X.509 encoded public key followed by the sealed PKCS#8 encoded private key
+ * Private keys are sealed with AES-GCM under a key derived from the operator's passphrase and the salt. The nonce
+ * is the registration number and the public key is the associated data, so an entry cannot be moved to another
+ * voter. The file is created readable by its owner only.
+ */
+class BoothKeys {
+    static final int MAGIC = 0x56424B32; // "VBK2"
+    private static final int PLAIN_MAGIC = 0x56424B31; // "VBK1", private keys stored as they are
+    static final String PASSPHRASE_VARIABLE = "BOOTHKEYS_PASSPHRASE";
+    private static final int HEADER_LENGTH = 28;
+    private static final int ENTRY_LENGTH = 16;
+    private static final int SALT_LENGTH = 16;
+    private static final int ITERATIONS = 600000;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+    private static final int REPORT_EVERY = 5000;
+
+    private final FileChannel file;
+    private final MappedByteBuffer index;
+    private final int count;
+    private final SecretKey sealKey;
+
+    private BoothKeys(FileChannel fileIn, char[] passphrase) throws IOException, GeneralSecurityException {
+        this.file = fileIn;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(this.file, header, 0);
+        int magic = header.getInt();
+        if (magic == PLAIN_MAGIC) {
+            throw new IOException("Booth key store holds plain private keys, provision it again with BoothKeys");
+        } else if (magic != MAGIC) {
+            throw new IOException("Not a booth key store");
+        }
+        this.count = header.getInt();
+        int iterations = header.getInt();
+        byte[] salt = new byte[SALT_LENGTH];
+        header.get(salt);
+        this.sealKey = deriveKey(passphrase, salt, iterations);
+        this.index = this.file.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH, (long) this.count * ENTRY_LENGTH);
+        if (this.count > 0) {
+            this.get(this.index.getInt(0)); // A wrong passphrase fails here rather than on the first voter
+        }
+    }
+
+    // Asks for the passphrase only when the store exists
+    static BoothKeys open(String fileName) throws IOException, GeneralSecurityException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+        char[] passphrase = passphrase(false);
+        try {
+            return new BoothKeys(channel, passphrase);
+        } catch (IOException | GeneralSecurityException ex) {
+            channel.close();
+            throw ex;
+        } finally {
+            Arrays.fill(passphrase, '\0');
+        }
+    }
+
+    // From the environment for unattended booths, otherwise typed at the console
+    static char[] passphrase(boolean confirm) throws IOException {
+        String variable = System.getenv(PASSPHRASE_VARIABLE);
+        if (variable != null && !variable.isEmpty()) {
+            return variable.toCharArray();
+        }
+        Console console = System.console();
+        if (console == null) {
+            throw new IOException("No console to ask for the booth key store passphrase, set " + PASSPHRASE_VARIABLE);
+        }
+        char[] passphrase = console.readPassword("Booth key store passphrase: ");
+        if (passphrase == null || passphrase.length == 0) {
+            throw new IOException("Booth key store passphrase is empty");
+        }
+        if (confirm && !Arrays.equals(passphrase, console.readPassword("Repeat the passphrase: "))) {
+            throw new IOException("Booth key store passphrases do not match");
+        }
+        return passphrase;
+    }
+
+    private static SecretKey deriveKey(char[] passphrase, byte[] salt, int iterations)
+            throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(passphrase, salt, iterations, 256);
+        try {
+            byte[] derived = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            return new SecretKeySpec(derived, "AES");
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static GCMParameterSpec nonce(int vnumber) {
+        return new GCMParameterSpec(TAG_LENGTH, ByteBuffer.allocate(NONCE_LENGTH).putInt(vnumber).array());
+    }
+
+    int size() {
+        return this.count;
+    }
+
+    // Safe to call from several threads, the index is only read with absolute gets and the data with positional reads
+    KeyPair get(int vnumber) throws IOException, GeneralSecurityException {
+        int low = 0;
+        int high = this.count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = middle * ENTRY_LENGTH;
+            int key = this.index.getInt(entry);
+            if (key < vnumber) {
+                low = middle + 1;
+            } else if (key > vnumber) {
+                high = middle - 1;
+            } else {
+                int publicLength = this.index.getShort(entry + 12) & 0xFFFF;
+                byte[] encoded = new byte[publicLength + (this.index.getShort(entry + 14) & 0xFFFF)];
+                readFully(this.file, ByteBuffer.wrap(encoded), this.index.getLong(entry + 4));
+                Cipher cipher = CryptoCache.sessionCipher();
+                cipher.init(Cipher.DECRYPT_MODE, this.sealKey, nonce(vnumber));
+                cipher.updateAAD(encoded, 0, publicLength);
+                byte[] privateKey = cipher.doFinal(encoded, publicLength, encoded.length - publicLength);
+                KeyFactory factory = KeyFactory.getInstance("RSA");
+                return new KeyPair(
+                        factory.generatePublic(new X509EncodedKeySpec(Arrays.copyOf(encoded, publicLength))),
+                        factory.generatePrivate(new PKCS8EncodedKeySpec(privateKey)));
+            }
+        }
+        return null;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Booth key store is truncated");
+            }
+        }
+        buffer.flip();
+    }
+
+    // vnumbers must be sorted, as provision() leaves them. Any earlier store is replaced, not rewritten in place,
+    // so the new one never inherits looser permissions
+    static void write(String fileName, int[] vnumbers, byte[][] publicKeys, byte[][] privateKeys, char[] passphrase)
+            throws IOException, GeneralSecurityException {
+        byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        SecretKey sealKey = deriveKey(passphrase, salt, ITERATIONS);
+        Cipher cipher = Cipher.getInstance(CryptoCache.SESSION_TRANSFORMATION);
+        byte[][] sealed = new byte[vnumbers.length][];
+        for (int i = 0; i < vnumbers.length; i++) {
+            cipher.init(Cipher.ENCRYPT_MODE, sealKey, nonce(vnumbers[i]));
+            cipher.updateAAD(publicKeys[i]);
+            sealed[i] = cipher.doFinal(privateKeys[i]);
+        }
+
+        Path path = Paths.get(fileName);
+        Files.deleteIfExists(path);
+        try (FileChannel out = FileChannel.open(path,
+                EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), ownerOnly())) {
+            ByteBuffer index = ByteBuffer.allocate(HEADER_LENGTH + vnumbers.length * ENTRY_LENGTH);
+            index.putInt(MAGIC).putInt(vnumbers.length).putInt(ITERATIONS).put(salt);
+            long offset = index.capacity();
+            for (int i = 0; i < vnumbers.length; i++) {
+                index.putInt(vnumbers[i]).putLong(offset)
+                        .putShort((short) publicKeys[i].length).putShort((short) sealed[i].length);
+                offset += publicKeys[i].length + sealed[i].length;
+            }
+            index.flip();
+            while (index.hasRemaining()) {
+                out.write(index);
+            }
+            for (int i = 0; i < vnumbers.length; i++) {
+                ByteBuffer[] pair = {ByteBuffer.wrap(publicKeys[i]), ByteBuffer.wrap(sealed[i])};
+                while (pair[1].hasRemaining()) {
+                    out.write(pair);
+                }
+            }
+            out.force(true);
+        }
+    }
+
+    // Read and write for the owner alone, where the file system has POSIX permissions
+    private static FileAttribute<?>[] ownerOnly() {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return new FileAttribute<?>[0];
+        }
+        return new FileAttribute<?>[] {
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))
+        };
+    }
+
+    // Generates a 2048-bit pair for every registration number, each thread with its own generator
+    static void provision(int[] vnumbers, int threadCount, byte[][] publicKeys, byte[][] privateKeys)
+            throws InterruptedException {
+        AtomicInteger next = new AtomicInteger();
+        Thread[] workers = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            workers[t] = new Thread(() -> {
+                KeyPairGenerator generator = null;
+                try {
+                    generator = KeyPairGenerator.getInstance("RSA");
+                } catch (GeneralSecurityException ex) {
+                    ServerUtil.handleException(ex, "No such key pair generator algorithm");
+                }
+                generator.initialize(2048);
+                int i;
+                while ((i = next.getAndIncrement()) < vnumbers.length) {
+                    KeyPair keys = generator.generateKeyPair();
+                    publicKeys[i] = keys.getPublic().getEncoded();
+                    privateKeys[i] = keys.getPrivate().getEncoded();
+                    if ((i + 1) % REPORT_EVERY == 0) {
+                        System.out.println("Generated " + (i + 1) + " of " + vnumbers.length + " key pairs");
+                    }
+                }
+            }, "provision-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    // Sorted registration numbers from a voterinfo style file, each once
+    private static int[] readVnumbers(String fileName) throws IOException {
+        int[] vnumbers = new int[1024];
+        int count = 0;
+        for (String line : Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            String[] nameVnumber = line.trim().split(" ");
+            long key = nameVnumber.length == 2 ? VoterRegistry.parseKey(nameVnumber[1]) : VoterRegistry.NO_KEY;
+            if (key == VoterRegistry.NO_KEY) {
+                continue;
+            }
+            if (count == vnumbers.length) {
+                vnumbers = Arrays.copyOf(vnumbers, count * 2);
+            }
+            vnumbers[count++] = (int) key;
+        }
+        Arrays.sort(vnumbers, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || vnumbers[i] != vnumbers[distinct - 1]) {
+                vnumbers[distinct++] = vnumbers[i];
+            }
+        }
+        return Arrays.copyOf(vnumbers, distinct);
+    }
+
+    // Provisions keys for every voter in a voterinfo style file: the booth key store and the server's voterkeys
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java BoothKeys <voter file> [boothkeys] [voterkeys]");
+            System.exit(1);
+        }
+        String keyStore = args.length > 1 ? args[1] : "boothkeys";
+        String directory = args.length > 2 ? args[2] : "voterkeys";
+        int threadCount = Integer.getInteger("provision.threads", Runtime.getRuntime().availableProcessors());
+        char[] passphrase = null;
+        try {
+            passphrase = passphrase(true);
+            int[] vnumbers = readVnumbers(args[0]);
+            byte[][] publicKeys = new byte[vnumbers.length][];
+            byte[][] privateKeys = new byte[vnumbers.length][];
+
+            long started = System.nanoTime();
+            provision(vnumbers, threadCount, publicKeys, privateKeys);
+            double seconds = (System.nanoTime() - started) / 1e9;
+            System.out.printf("Generated %d key pairs on %d threads in %.1f s (%.0f pairs/s)%n", vnumbers.length,
+                    threadCount, seconds, vnumbers.length / seconds);
+
+            write(keyStore, vnumbers, publicKeys, privateKeys, passphrase);
+            KeyDirectory.write(directory, vnumbers, publicKeys);
+            System.out.println("Wrote " + vnumbers.length + " booth keys to " + keyStore + " and " + directory);
+        } catch (IOException ex) {
+            ServerUtil.handleException(ex, "I/O Error occurred while reading voters or writing key files");
+        } catch (GeneralSecurityException ex) {
+            ServerUtil.handleException(ex, "Could not seal the private keys under the passphrase");
+        } catch (InterruptedException ex) {
+            ServerUtil.handleException(ex, "Interrupted while waiting for key generation to finish");
+        } finally {
+            if (passphrase != null) {
+                Arrays.fill(passphrase, '\0');
+            }
+        }
+    }
+}
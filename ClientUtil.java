@@ -7,6 +7,7 @@ import java.io.InputStreamReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.InvalidParameterException;
 import java.security.Key;
@@ -19,16 +20,27 @@ import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.List;
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SealedObject;
+import javax.crypto.SecretKey;
 
 class ClientUtil {
     private BufferedReader userInput;
+    private BoothKeys boothKeys;
 
     ClientUtil() {
         this.userInput = new BufferedReader(new InputStreamReader(System.in));
+        try {
+            this.boothKeys = BoothKeys.open(System.getProperty("client.keystore", "boothkeys"));
+        } catch (IOException ex) {
+            handleException(ex, "I/O Error occurred while opening booth key store");
+        } catch (GeneralSecurityException ex) {
+            handleException(ex, "Wrong passphrase for the booth key store, or the store is damaged");
+        }
     }
 
     static void handleException(Exception exception, String message) {
@@ -38,17 +50,17 @@ class ClientUtil {
         System.exit(1);
     }
 
-    private KeyPair createClientKeys() {
+    private KeyPair createClientKeys(String prefix) {
         try {
             KeyPairGenerator keyGenerator = KeyPairGenerator.getInstance("RSA");
             keyGenerator.initialize(2048);
             KeyPair keys = keyGenerator.generateKeyPair();
 
-            FileOutputStream publicKeyFile = new FileOutputStream("client_public.key");
+            FileOutputStream publicKeyFile = new FileOutputStream(prefix + "_public.key");
             publicKeyFile.write(keys.getPublic().getEncoded());
             publicKeyFile.close();
 
-            FileOutputStream privateKeyFile = new FileOutputStream("client_private.key");
+            FileOutputStream privateKeyFile = new FileOutputStream(prefix + "_private.key");
             privateKeyFile.write(keys.getPrivate().getEncoded());
             privateKeyFile.close();
 
@@ -65,18 +77,24 @@ class ClientUtil {
         return null;
     }
 
-    KeyPair getClientKeys() {
+    KeyPair getClientKeys(String vnumber) {
+        KeyPair provisioned = this.getProvisionedKeys(vnumber);
+        if (provisioned != null) {
+            return provisioned;
+        }
+        // Voters with their own key pair keep it under keys/, otherwise the booth's shared pair is used
+        String prefix = new File("keys").isDirectory() ? "keys/" + vnumber : "client";
         try {
             KeyFactory factory = KeyFactory.getInstance("RSA");
 
-            FileInputStream publicKeyFile = new FileInputStream("client_public.key");
+            FileInputStream publicKeyFile = new FileInputStream(prefix + "_public.key");
             byte[] publicKeyByte = new byte[publicKeyFile.available()];
             publicKeyFile.read(publicKeyByte);
             publicKeyFile.close();
             X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(publicKeyByte);
             PublicKey publicKey = factory.generatePublic(publicKeySpec);
 
-            FileInputStream privateKeyFile = new FileInputStream("client_private.key");
+            FileInputStream privateKeyFile = new FileInputStream(prefix + "_private.key");
             byte[] privateKeyByte = new byte[privateKeyFile.available()];
             privateKeyFile.read(privateKeyByte);
             privateKeyFile.close();
@@ -88,7 +106,7 @@ class ClientUtil {
             handleException(ex, "No such key generator algorithm");
         } catch (FileNotFoundException ex) {
             System.out.println("Client key files not found, generating keys and saving to files");
-            return this.createClientKeys();
+            return this.createClientKeys(prefix);
         } catch (IOException ex) {
             handleException(ex, "I/O Error occurred while reading or closing client key files");
         } catch (InvalidKeySpecException ex) {
@@ -97,6 +115,22 @@ class ClientUtil {
         return null;
     }
 
+    // The voter's pair from a key store written by BoothKeys, or null when there is none to load
+    private KeyPair getProvisionedKeys(String vnumber) {
+        long key = VoterRegistry.parseKey(vnumber);
+        if (this.boothKeys == null || key == VoterRegistry.NO_KEY) {
+            return null;
+        }
+        try {
+            return this.boothKeys.get((int) key);
+        } catch (IOException ex) {
+            handleException(ex, "I/O Error occurred while reading booth key store");
+        } catch (GeneralSecurityException ex) {
+            handleException(ex, "Booth key store holds a key that is not a valid RSA key");
+        }
+        return null;
+    }
+
     PublicKey getServerKey() {
         try {
             KeyFactory factory = KeyFactory.getInstance("RSA");
@@ -148,6 +182,9 @@ class ClientUtil {
             } catch (IOException ex) {
                 handleException(ex, "I/O error occurred while inputting name");
             }
+            if (name == null) {
+                return null; // End of input, a kiosk has no more voters
+            }
             if (this.invalidName(name)) {
                 System.out.println("Invalid name, name can't be empty or contain spaces");
             }
@@ -164,6 +201,9 @@ class ClientUtil {
             } catch (IOException ex) {
                 handleException(ex, "I/O error occurred while inputting voter registration number");
             }
+            if (vnumber == null) {
+                return null;
+            }
             if (this.invalidVnumber(vnumber)) {
                 System.out.println("Invalid voter registration number, must be number with 9 digits");
             }
@@ -187,6 +227,9 @@ class ClientUtil {
             } catch (IOException ex) {
                 handleException(ex, "I/O error occurred while inputting action to menu");
             }
+            if (action == null) {
+                return (short) Protocol.QUIT;
+            }
             if (this.invalidAction(action)) {
                 System.out.println("Invalid action, must be number (1-4)\n");
             }
@@ -194,21 +237,91 @@ class ClientUtil {
         return Short.parseShort(action);
     }
 
-    SealedObject encrypt(Key key, String message) {
+    private boolean invalidCandidate(String choice, int candidateCount) {
         try {
-            Cipher cipher = Cipher.getInstance("RSA");
-            cipher.init(Cipher.ENCRYPT_MODE, key);
-            return new SealedObject(message, cipher);
+            int number = Integer.parseInt(choice);
+            return number < 1 || number > candidateCount;
+        } catch (NumberFormatException ex) {
+            return true;
+        }
+    }
+
+    int inputCandidate(List<String> candidates) {
+        String choice = new String();
+        do {
+            System.out.println("    Candidates");
+            for (int i = 0; i < candidates.size(); i++) {
+                System.out.println((i + 1) + ". " + candidates.get(i));
+            }
+            System.out.print("Enter candidate number (1-" + candidates.size() + "): ");
+            try {
+                choice = this.userInput.readLine();
+            } catch (IOException ex) {
+                handleException(ex, "I/O error occurred while inputting candidate");
+            }
+            if (this.invalidCandidate(choice, candidates.size())) {
+                System.out.println("Invalid candidate, must be number (1-" + candidates.size() + ")\n");
+            }
+        } while (this.invalidCandidate(choice, candidates.size()));
+        return Integer.parseInt(choice) - 1;
+    }
+
+    SecretKey createSessionKey() {
+        try {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance(SessionCipher.KEY_ALGORITHM);
+            keyGenerator.init(SessionCipher.KEY_SIZE);
+            return keyGenerator.generateKey();
+        } catch (NoSuchAlgorithmException ex) {
+            handleException(ex, "No such session key generator algorithm");
+        } catch (InvalidParameterException ex) {
+            handleException(ex, "Invalid session key size, wrong or not supported");
+        }
+        return null;
+    }
+
+    byte[] wrapSessionKey(Key serverKey, SecretKey sessionKey) {
+        try {
+            Cipher cipher = CryptoCache.wrapCipher();
+            cipher.init(Cipher.WRAP_MODE, serverKey);
+            return cipher.wrap(sessionKey);
         } catch (NoSuchAlgorithmException ex) {
             handleException(ex, "No such cipher algorithm");
         } catch (NoSuchPaddingException ex) {
             handleException(ex, "Transformation contains a padding scheme that is not available");
         } catch (InvalidKeyException ex) {
-            handleException(ex, "Invalid key for initializing the cipher");
+            handleException(ex, "Invalid key for wrapping the session key");
         } catch (IllegalBlockSizeException ex) {
             handleException(ex, "Invalid cipher block size");
-        } catch (IOException ex) {
-            handleException(ex, "I/O Error occurred during serialization");
+        }
+        return null;
+    }
+
+    // The cipher for a resumed connection, once the server's reply has brought its nonce
+    SessionCipher resumedSession(SecretKey ticketKey, byte[] clientNonce, byte[] serverNonce) {
+        try {
+            return new SessionCipher(SessionCipher.derive(ticketKey, clientNonce, serverNonce));
+        } catch (GeneralSecurityException ex) {
+            handleException(ex, "Error occurred while deriving the resumed session key");
+        }
+        return null;
+    }
+
+    byte[] encrypt(SessionCipher session, byte type, byte[] message) {
+        try {
+            return session.encrypt(type, message);
+        } catch (GeneralSecurityException ex) {
+            handleException(ex, "Error occurred while encrypting session message");
+        }
+        return null;
+    }
+
+    byte[] decrypt(SessionCipher session, byte type, byte[] encrypted) {
+        try {
+            return session.decrypt(type, encrypted);
+        } catch (AEADBadTagException ex) {
+            handleException(ex, "Session message failed authentication");
+        } catch (GeneralSecurityException ex) {
+            handleException(ex, "Error occurred while decrypting session message");
         }
         return null;
     }
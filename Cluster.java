@@ -0,0 +1,278 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+
+/*
+ * Clustered mode: the roll is split by registration number range across several Vf nodes, each running in its own
+ * directory with its own journal. A node only keeps the voters in its range, so the double vote check never leaves
+ * it, and redirects logins for other ranges to their owner. Each node polls the others for their local tallies over
+ * the normal protocol (HELLO, then TALLY) and answers RESULT with the merged global count. The first TALLY carries
+ * the wrapped session key signed with the server key, which every node holds, so only a peer can read a local tally.
+ *
+ * The cluster file has one partition per line, in node order: <low vnumber> <high vnumber> <host> <port>
+ */
+class Cluster {
+    static class Partition {
+        final long low;
+        final long high;
+        final String host;
+        final int port;
+
+        Partition(long lowIn, long highIn, String hostIn, int portIn) {
+            this.low = lowIn;
+            this.high = highIn;
+            this.host = hostIn;
+            this.port = portIn;
+        }
+
+        boolean owns(long key) {
+            return key >= this.low && key <= this.high;
+        }
+    }
+
+    private static class Merged {
+        final Tally.Snapshot local;
+        final Map<String, Long> remote;
+        final byte[] encoded;
+
+        Merged(Tally.Snapshot localIn, Map<String, Long> remoteIn, byte[] encodedIn) {
+            this.local = localIn;
+            this.remote = remoteIn;
+            this.encoded = encodedIn;
+        }
+    }
+
+    private final List<Partition> partitions;
+    private final int self;
+    private final KeyPair serverKeys;
+    private final long pollInterval;
+    private final AtomicReferenceArray<Map<String, Long>> peerCounts;
+    private volatile Map<String, Long> remote = new HashMap<String, Long>();
+    private volatile Merged merged;
+
+    Cluster(List<Partition> partitionsIn, int selfIn, KeyPair serverKeysIn, long pollIntervalIn) {
+        if (selfIn < 0 || selfIn >= partitionsIn.size()) {
+            throw new IllegalArgumentException("Node " + selfIn + " is not in the cluster file");
+        }
+        this.partitions = partitionsIn;
+        this.self = selfIn;
+        this.serverKeys = serverKeysIn;
+        this.pollInterval = pollIntervalIn;
+        this.peerCounts = new AtomicReferenceArray<Map<String, Long>>(partitionsIn.size());
+    }
+
+    static List<Partition> parse(String fileName) throws IOException {
+        ArrayList<Partition> partitions = new ArrayList<Partition>();
+        for (String line : Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            String[] fields = trimmed.split("\\s+");
+            if (fields.length != 4) {
+                throw new IOException("Expected <low> <high> <host> <port> in cluster file but found: " + line);
+            }
+            partitions.add(new Partition(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2],
+                    Integer.parseInt(fields[3])));
+        }
+        return partitions;
+    }
+
+    static Partition owner(List<Partition> partitions, String vnumber) {
+        long key = VoterRegistry.parseKey(vnumber);
+        if (key == VoterRegistry.NO_KEY) {
+            return null;
+        }
+        for (Partition partition : partitions) {
+            if (partition.owns(key)) {
+                return partition;
+            }
+        }
+        return null;
+    }
+
+    // The partition that should serve this voter when it is not this node, otherwise null
+    Partition redirect(String vnumber) {
+        Partition owner = owner(this.partitions, vnumber);
+        return owner == null || owner == this.partitions.get(this.self) ? null : owner;
+    }
+
+    // Refuses to serve a roll that holds voters from another partition, they would be able to vote twice
+    void checkRoll(VoterRegistry voters) {
+        Partition mine = this.partitions.get(this.self);
+        for (Voter voter : voters) {
+            if (!mine.owns(VoterRegistry.parseKey(voter.getVnumber()))) {
+                throw new IllegalArgumentException("Voter " + voter.getVnumber() + " is outside this node's range "
+                        + mine.low + " - " + mine.high);
+            }
+        }
+    }
+
+    void start() {
+        for (int i = 0; i < this.partitions.size(); i++) {
+            if (i != this.self) {
+                int peer = i;
+                Thread poller = new Thread(() -> this.poll(peer), "cluster-peer-" + i);
+                poller.setDaemon(true);
+                poller.start();
+            }
+        }
+    }
+
+    // Keeps one session open to the peer and asks it for its local tally every poll interval
+    private void poll(int peer) {
+        Partition partition = this.partitions.get(peer);
+        boolean reachable = true;
+        while (true) {
+            try (Socket socket = new Socket(partition.host, partition.port)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                KeyGenerator generator = KeyGenerator.getInstance(SessionCipher.KEY_ALGORITHM);
+                generator.init(SessionCipher.KEY_SIZE);
+                SessionCipher session = new SessionCipher(generator.generateKey());
+                Cipher wrap = CryptoCache.wrapCipher();
+                wrap.init(Cipher.WRAP_MODE, this.serverKeys.getPublic());
+                byte[] wrapped = wrap.wrap(session.getKey());
+                Protocol.writeFrame(out, Protocol.HELLO, wrapped);
+                Signature signer = CryptoCache.signature();
+                signer.initSign(this.serverKeys.getPrivate());
+                signer.update(wrapped);
+                byte[] proof = signer.sign();
+                while (true) {
+                    Protocol.writeFrame(out, Protocol.TALLY, session.encrypt(Protocol.TALLY, proof));
+                    proof = new byte[0]; // Only the first poll on a connection proves who is asking
+                    out.flush();
+                    Protocol.Frame reply = Protocol.readFrame(in, Protocol.RESULTS);
+                    this.update(peer, Protocol.decodeResult(session.decrypt(Protocol.RESULTS, reply.payload)));
+                    if (!reachable) {
+                        System.out.println("Tally from node " + peer + " is current again");
+                        reachable = true;
+                    }
+                    Thread.sleep(this.pollInterval);
+                }
+            } catch (IOException | GeneralSecurityException ex) {
+                if (reachable) {
+                    System.err.println("Could not fetch tally from node " + peer + ", using its last known counts: " + ex);
+                    reachable = false;
+                }
+            } catch (InterruptedException ex) {
+                return;
+            }
+            try {
+                Thread.sleep(this.pollInterval);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void update(int peer, Map<String, Long> counts) {
+        this.peerCounts.set(peer, counts);
+        HashMap<String, Long> sum = new HashMap<String, Long>();
+        for (int i = 0; i < this.peerCounts.length(); i++) {
+            Map<String, Long> peerCount = this.peerCounts.get(i);
+            if (peerCount != null) {
+                for (Map.Entry<String, Long> candidate : peerCount.entrySet()) {
+                    sum.merge(candidate.getKey(), candidate.getValue(), Long::sum);
+                }
+            }
+        }
+        this.remote = sum;
+    }
+
+    // The local tally plus the latest counts from every peer, rebuilt only when one of them has changed
+    byte[] result(Tally tally) {
+        Tally.Snapshot local = tally.snapshot();
+        Map<String, Long> peers = this.remote;
+        Merged current = this.merged;
+        if (current != null && current.local == local && current.remote == peers) {
+            return current.encoded;
+        }
+        LinkedHashMap<String, Long> totals = new LinkedHashMap<String, Long>();
+        List<String> names = tally.candidates();
+        for (int i = 0; i < names.size(); i++) {
+            totals.put(names.get(i), local.counts[i]);
+        }
+        for (Map.Entry<String, Long> candidate : peers.entrySet()) {
+            totals.merge(candidate.getKey(), candidate.getValue(), Long::sum);
+        }
+        long[] counts = new long[totals.size()];
+        int i = 0;
+        for (long count : totals.values()) {
+            counts[i++] = count;
+        }
+        current = new Merged(local, peers, Protocol.encodeResult(new ArrayList<String>(totals.keySet()), counts));
+        this.merged = current;
+        return current.encoded;
+    }
+
+    // Splits a roll into node<i>/voterinfo by partition and gives every node the shared files it needs to start
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: java Cluster <cluster file> <voterinfo>");
+            System.exit(1);
+        }
+        try {
+            List<Partition> partitions = parse(args[0]);
+            new ServerUtil().getServerKeys(); // Every node has to present the same server key to clients
+            ArrayList<BufferedWriter> rolls = new ArrayList<BufferedWriter>();
+            for (int i = 0; i < partitions.size(); i++) {
+                Path node = Paths.get("node" + i);
+                Files.createDirectories(node);
+                for (String shared : new String[] {"candidateinfo", "server_public.key", "server_private.key",
+                        "client_public.key", "voterkeys", args[0]}) {
+                    try {
+                        Files.copy(Paths.get(shared), node.resolve(Paths.get(shared).getFileName()),
+                                StandardCopyOption.REPLACE_EXISTING);
+                    } catch (NoSuchFileException ex) {
+                        // Optional files such as voterkeys or the shared client key are only copied when present
+                    }
+                }
+                rolls.add(Files.newBufferedWriter(node.resolve("voterinfo"), StandardCharsets.UTF_8));
+            }
+            int[] counts = new int[partitions.size()];
+            for (String line : Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+                String[] nameVnumber = line.trim().split(" ");
+                Partition owner = nameVnumber.length == 2 ? owner(partitions, nameVnumber[1]) : null;
+                if (owner == null) {
+                    System.out.println("Skipping voter outside every partition: " + line);
+                    continue;
+                }
+                int node = partitions.indexOf(owner);
+                rolls.get(node).write(line.trim());
+                rolls.get(node).newLine();
+                counts[node]++;
+            }
+            for (int i = 0; i < partitions.size(); i++) {
+                rolls.get(i).close();
+                System.out.println("node" + i + ": " + counts[i] + " voters, start with -Dvf.cluster="
+                        + Paths.get(args[0]).getFileName() + " -Dvf.node=" + i + " on port " + partitions.get(i).port);
+            }
+        } catch (NumberFormatException ex) {
+            ServerUtil.handleException(ex, "Invalid range or port in cluster file, not a number");
+        } catch (IOException ex) {
+            ServerUtil.handleException(ex, "I/O Error occurred while splitting the voter roll");
+        }
+    }
+}
@@ -0,0 +1,244 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Voter roll stored as columns indexed by row: registration numbers as ints, names packed into one
+ * byte arena (optionally a direct buffer outside the heap), the voted flag as one bit per row and the
+ * vote time as epoch milliseconds. Lookups hand out short-lived Voter views over a row.
+ */
+class ColumnarVoterRegistry implements VoterRegistry {
+    private final boolean offHeap;
+    private int[] vnumbers;
+    private byte[] vnumberDigits;
+    private int[] nameOffsets;
+    private ByteBuffer names;
+    private AtomicLongArray voted;
+    private AtomicLongArray voteTimes;
+    private int[] table; // row + 1 per slot, 0 when empty
+    private int mask;
+    private int size;
+
+    ColumnarVoterRegistry(int expectedSize, boolean offHeapIn) {
+        this.offHeap = offHeapIn;
+        int rows = Math.max(expectedSize, 8);
+        this.vnumbers = new int[rows];
+        this.vnumberDigits = new byte[rows];
+        this.nameOffsets = new int[rows + 1];
+        this.names = this.allocate(rows * 16);
+        this.voted = new AtomicLongArray((rows + 63) >>> 6);
+        this.voteTimes = new AtomicLongArray(rows);
+        int capacity = Integer.highestOneBit(rows * 2 - 1) << 1;
+        this.table = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return this.offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    public boolean add(String name, String vnumber) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] vnumberBytes = vnumber.getBytes(StandardCharsets.UTF_8);
+        byte[] row = Arrays.copyOf(nameBytes, nameBytes.length + vnumberBytes.length);
+        System.arraycopy(vnumberBytes, 0, row, nameBytes.length, vnumberBytes.length);
+        return this.add(ByteBuffer.wrap(row), 0, nameBytes.length, nameBytes.length, row.length);
+    }
+
+    public boolean add(ByteBuffer data, int nameStart, int nameEnd, int vnumberStart, int vnumberEnd) {
+        long key = RollLoader.parseKey(data, vnumberStart, vnumberEnd);
+        if (key == NO_KEY || this.find((int) key) >= 0) {
+            return false;
+        }
+        if (this.size == this.vnumbers.length) {
+            this.grow(this.size * 2);
+        }
+        int nameLength = nameEnd - nameStart;
+        int nameOffset = this.nameOffsets[this.size];
+        if (this.names.capacity() - nameOffset < nameLength) {
+            ByteBuffer larger = this.allocate(Math.max(this.names.capacity() * 2, nameOffset + nameLength));
+            ByteBuffer used = this.names.duplicate();
+            used.position(0).limit(nameOffset);
+            larger.put(used);
+            this.names = larger;
+        }
+        this.names.put(nameOffset, data, nameStart, nameLength);
+
+        int row = this.size++;
+        this.vnumbers[row] = (int) key;
+        this.vnumberDigits[row] = (byte) (vnumberEnd - vnumberStart);
+        this.nameOffsets[row + 1] = nameOffset + nameLength;
+        int slot = VoterRegistry.hash((int) key) & this.mask;
+        while (this.table[slot] != 0) {
+            slot = (slot + 1) & this.mask;
+        }
+        this.table[slot] = row + 1;
+        return true;
+    }
+
+    private void grow(int rows) {
+        this.vnumbers = Arrays.copyOf(this.vnumbers, rows);
+        this.vnumberDigits = Arrays.copyOf(this.vnumberDigits, rows);
+        this.nameOffsets = Arrays.copyOf(this.nameOffsets, rows + 1);
+        AtomicLongArray grownVoted = new AtomicLongArray((rows + 63) >>> 6);
+        for (int i = 0; i < this.voted.length(); i++) {
+            grownVoted.set(i, this.voted.get(i));
+        }
+        this.voted = grownVoted;
+        AtomicLongArray grownTimes = new AtomicLongArray(rows);
+        for (int i = 0; i < this.size; i++) {
+            grownTimes.set(i, this.voteTimes.get(i));
+        }
+        this.voteTimes = grownTimes;
+
+        int capacity = Integer.highestOneBit(rows * 2 - 1) << 1;
+        this.table = new int[capacity];
+        this.mask = capacity - 1;
+        for (int row = 0; row < this.size; row++) {
+            int slot = VoterRegistry.hash(this.vnumbers[row]) & this.mask;
+            while (this.table[slot] != 0) {
+                slot = (slot + 1) & this.mask;
+            }
+            this.table[slot] = row + 1;
+        }
+    }
+
+    private int find(int vnumber) {
+        int slot = VoterRegistry.hash(vnumber) & this.mask;
+        int entry;
+        while ((entry = this.table[slot]) != 0) {
+            if (this.vnumbers[entry - 1] == vnumber) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    public Voter get(int vnumber) {
+        int row = this.find(vnumber);
+        return row < 0 ? null : new View(row);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public Iterator<Voter> iterator() {
+        return new Iterator<Voter>() {
+            private int row;
+
+            public boolean hasNext() {
+                return this.row < size;
+            }
+
+            public Voter next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return new View(this.row++);
+            }
+        };
+    }
+
+    private String name(int row) {
+        int start = this.nameOffsets[row];
+        byte[] bytes = new byte[this.nameOffsets[row + 1] - start];
+        this.names.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String vnumber(int row) {
+        String digits = Integer.toString(this.vnumbers[row]);
+        int width = this.vnumberDigits[row];
+        if (digits.length() >= width) {
+            return digits;
+        }
+        StringBuilder padded = new StringBuilder(width);
+        for (int i = digits.length(); i < width; i++) {
+            padded.append('0');
+        }
+        return padded.append(digits).toString();
+    }
+
+    private boolean isVoted(int row) {
+        return (this.voted.get(row >>> 6) & (1L << row)) != 0;
+    }
+
+    // Sets the row's voted bit, returns false if it was already set
+    private boolean markVoted(int row) {
+        long bit = 1L << row;
+        long word;
+        do {
+            word = this.voted.get(row >>> 6);
+            if ((word & bit) != 0) {
+                return false;
+            }
+        } while (!this.voted.compareAndSet(row >>> 6, word, word | bit));
+        return true;
+    }
+
+    private class View extends Voter {
+        private final int row;
+
+        View(int rowIn) {
+            this.row = rowIn;
+        }
+
+        @Override
+        public String getName() {
+            return name(this.row);
+        }
+
+        @Override
+        public String getVnumber() {
+            return vnumber(this.row);
+        }
+
+        @Override
+        public boolean getVoted() {
+            return isVoted(this.row);
+        }
+
+        @Override
+        public String getVoteTime() {
+            long millis = voteTimes.get(this.row);
+            return millis == 0 ? "" : Instant.ofEpochMilli(millis).toString();
+        }
+
+        @Override
+        public void setVoted() {
+            markVoted(this.row);
+        }
+
+        @Override
+        public void setVoteTime() {
+            voteTimes.set(this.row, System.currentTimeMillis());
+        }
+
+        @Override
+        public void setVoteTime(String voteTimeIn) {
+            try {
+                voteTimes.set(this.row, Instant.parse(voteTimeIn).toEpochMilli());
+            } catch (DateTimeParseException ex) {
+                voteTimes.set(this.row, 0);
+            }
+        }
+
+        // The time is claimed first and the voted bit published after it, as Voter does with its volatile flag, so
+        // a reader that sees the bit also sees the time. Of two sessions racing here only one claims the time
+        @Override
+        public boolean castVote() {
+            if (isVoted(this.row) || !voteTimes.compareAndSet(this.row, 0, System.currentTimeMillis())) {
+                return false;
+            }
+            markVoted(this.row);
+            return true;
+        }
+    }
+}
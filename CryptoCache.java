@@ -0,0 +1,66 @@
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+class CryptoCache {
+    static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+    static final String WRAP_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    static final String SESSION_TRANSFORMATION = "AES/GCM/NoPadding";
+    static final String KEY_ALGORITHM = "RSA";
+
+    private static final ThreadLocal<Signature> SIGNATURE = new ThreadLocal<Signature>();
+    private static final ThreadLocal<Cipher> WRAP_CIPHER = new ThreadLocal<Cipher>();
+    private static final ThreadLocal<Cipher> SESSION_CIPHER = new ThreadLocal<Cipher>();
+    private static final ThreadLocal<Mac> MAC = new ThreadLocal<Mac>();
+    private static final ThreadLocal<KeyFactory> KEY_FACTORY = new ThreadLocal<KeyFactory>();
+
+    private CryptoCache() {}
+
+    static Signature signature() throws NoSuchAlgorithmException {
+        Signature instance = SIGNATURE.get();
+        if (instance == null) {
+            instance = Signature.getInstance(SIGNATURE_ALGORITHM);
+            SIGNATURE.set(instance);
+        }
+        return instance;
+    }
+
+    static Cipher wrapCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Cipher instance = WRAP_CIPHER.get();
+        if (instance == null) {
+            instance = Cipher.getInstance(WRAP_TRANSFORMATION);
+            WRAP_CIPHER.set(instance);
+        }
+        return instance;
+    }
+
+    static Cipher sessionCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Cipher instance = SESSION_CIPHER.get();
+        if (instance == null) {
+            instance = Cipher.getInstance(SESSION_TRANSFORMATION);
+            SESSION_CIPHER.set(instance);
+        }
+        return instance;
+    }
+
+    static Mac mac() throws NoSuchAlgorithmException {
+        Mac instance = MAC.get();
+        if (instance == null) {
+            instance = Mac.getInstance(Receipts.MAC_ALGORITHM);
+            MAC.set(instance);
+        }
+        return instance;
+    }
+
+    static KeyFactory keyFactory() throws NoSuchAlgorithmException {
+        KeyFactory instance = KEY_FACTORY.get();
+        if (instance == null) {
+            instance = KeyFactory.getInstance(KEY_ALGORITHM);
+            KEY_FACTORY.set(instance);
+        }
+        return instance;
+    }
+}
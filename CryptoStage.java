@@ -0,0 +1,60 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Consumer;
+
+/*
+ * A pool sized to the cores that runs the RSA heavy steps of a session off the selector threads. Workers take
+ * tasks from a bounded queue in batches and hand each finished batch back in one call, so the owners are woken
+ * once per batch rather than once per task. A worker takes only its share of the backlog, so a burst is spread
+ * over every core instead of run in order by whichever worker woke first. submit() refuses when the queue is
+ * full, which is the caller's cue to stop reading from that connection until the stage catches up.
+ */
+class CryptoStage<T extends Runnable> {
+    private static final int BATCH = 64;
+
+    private final ArrayBlockingQueue<T> queue;
+    private final Consumer<List<T>> completed;
+    private final Thread[] workers;
+
+    CryptoStage(String name, int threadCount, int capacity, Consumer<List<T>> completedIn) {
+        this.queue = new ArrayBlockingQueue<T>(capacity);
+        this.completed = completedIn;
+        this.workers = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            this.workers[i] = new Thread(this::work, name + "-" + i);
+            this.workers[i].setDaemon(true);
+            this.workers[i].start();
+        }
+    }
+
+    boolean submit(T task) {
+        return this.queue.offer(task);
+    }
+
+    private void work() {
+        ArrayList<T> batch = new ArrayList<T>(BATCH);
+        while (true) {
+            try {
+                batch.add(this.queue.take());
+            } catch (InterruptedException ex) {
+                return;
+            }
+            int share = Math.min(BATCH - 1, this.queue.size() / this.workers.length);
+            if (share > 0) {
+                this.queue.drainTo(batch, share);
+            }
+            for (T task : batch) {
+                task.run();
+            }
+            this.completed.accept(batch);
+            batch.clear();
+        }
+    }
+
+    void close() {
+        for (Thread worker : this.workers) {
+            worker.interrupt();
+        }
+    }
+}
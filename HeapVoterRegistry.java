@@ -0,0 +1,108 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+class HeapVoterRegistry implements VoterRegistry {
+    private int[] keys;
+    private Voter[] values;
+    private int mask;
+    private int size;
+
+    HeapVoterRegistry(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        this.keys = new int[capacity];
+        this.values = new Voter[capacity];
+        this.mask = capacity - 1;
+        this.size = 0;
+    }
+
+    public boolean add(String name, String vnumber) {
+        return this.add(new Voter(name, vnumber));
+    }
+
+    public boolean add(ByteBuffer data, int nameStart, int nameEnd, int vnumberStart, int vnumberEnd) {
+        return this.add(new Voter(RollLoader.string(data, nameStart, nameEnd),
+                RollLoader.string(data, vnumberStart, vnumberEnd)));
+    }
+
+    private boolean add(Voter voter) {
+        long key = VoterRegistry.parseKey(voter.getVnumber());
+        if (key == NO_KEY) {
+            return false;
+        }
+        if ((this.size + 1) * 2 > this.keys.length) {
+            this.resize(this.keys.length * 2);
+        }
+        int slot = VoterRegistry.hash((int) key) & this.mask;
+        while (this.values[slot] != null) {
+            if (this.keys[slot] == (int) key) {
+                return false;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        this.keys[slot] = (int) key;
+        this.values[slot] = voter;
+        this.size++;
+        return true;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = this.keys;
+        Voter[] oldValues = this.values;
+        this.keys = new int[capacity];
+        this.values = new Voter[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = VoterRegistry.hash(oldKeys[i]) & this.mask;
+                while (this.values[slot] != null) {
+                    slot = (slot + 1) & this.mask;
+                }
+                this.keys[slot] = oldKeys[i];
+                this.values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    public Voter get(int vnumber) {
+        int slot = VoterRegistry.hash(vnumber) & this.mask;
+        Voter voter;
+        while ((voter = this.values[slot]) != null) {
+            if (this.keys[slot] == vnumber) {
+                return voter;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        return null;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public Iterator<Voter> iterator() {
+        return new Iterator<Voter>() {
+            private int slot = this.advance(0);
+
+            private int advance(int from) {
+                while (from < values.length && values[from] == null) {
+                    from++;
+                }
+                return from;
+            }
+
+            public boolean hasNext() {
+                return this.slot < values.length;
+            }
+
+            public Voter next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Voter voter = values[this.slot];
+                this.slot = this.advance(this.slot + 1);
+                return voter;
+            }
+        };
+    }
+}
@@ -0,0 +1,55 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+
+class KeyCache {
+    private static final long CHECK_INTERVAL = 1000; // Look at the key file's modified time at most once a second
+
+    private static class Entry {
+        final PublicKey key;
+        final FileTime modified;
+        final long checked;
+
+        Entry(PublicKey keyIn, FileTime modifiedIn, long checkedIn) {
+            this.key = keyIn;
+            this.modified = modifiedIn;
+            this.checked = checkedIn;
+        }
+    }
+
+    private final Path path;
+    private volatile Entry current;
+
+    KeyCache(String fileName) {
+        this.path = Paths.get(fileName);
+    }
+
+    PublicKey get() throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+        Entry entry = this.current;
+        long now = System.currentTimeMillis();
+        if (entry != null && now - entry.checked < CHECK_INTERVAL) {
+            return entry.key;
+        }
+        synchronized (this) {
+            entry = this.current;
+            if (entry != null && now - entry.checked < CHECK_INTERVAL) {
+                return entry.key;
+            }
+            FileTime modified = Files.getLastModifiedTime(this.path);
+            if (entry != null && entry.modified.equals(modified)) {
+                this.current = new Entry(entry.key, modified, now);
+            } else {
+                X509EncodedKeySpec keySpec = new X509EncodedKeySpec(Files.readAllBytes(this.path));
+                this.current = new Entry(KeyFactory.getInstance("RSA").generatePublic(keySpec), modified, now);
+            }
+            return this.current.key;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+/*
+ * Layout of the directory file, all integers big-endian:
+ *   magic (4) | entry count (4)
+ *   index, sorted by registration number: vnumber (4) | data offset (8) | key length (2)
+ *   data: X.509 encoded public keys
+ * The whole file is mapped, so a login's key is copied out of the page cache without a read call.
+ */
+class KeyDirectory {
+    static final int MAGIC = 0x564B4431; // "VKD1"
+    private static final int HEADER_LENGTH = 8;
+    private static final int ENTRY_LENGTH = 14;
+
+    private final MappedByteBuffer contents;
+    private final int count;
+
+    private KeyDirectory(FileChannel file) throws IOException {
+        long size = file.size();
+        if (size < HEADER_LENGTH) {
+            throw new IOException("Voter key directory is truncated");
+        } else if (size > Integer.MAX_VALUE) {
+            throw new IOException("Voter key directory is too large to map");
+        }
+        this.contents = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (this.contents.getInt(0) != MAGIC) {
+            throw new IOException("Not a voter key directory");
+        }
+        this.count = this.contents.getInt(4);
+        if (HEADER_LENGTH + (long) this.count * ENTRY_LENGTH > size) {
+            throw new IOException("Voter key directory is truncated");
+        }
+    }
+
+    // The mapping outlives the channel, so nothing is left open
+    static KeyDirectory open(String fileName) throws IOException {
+        try (FileChannel file = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            return new KeyDirectory(file);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    int size() {
+        return this.count;
+    }
+
+    PublicKey get(int vnumber) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+        int low = 0;
+        int high = this.count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = HEADER_LENGTH + middle * ENTRY_LENGTH;
+            int key = this.contents.getInt(entry);
+            if (key < vnumber) {
+                low = middle + 1;
+            } else if (key > vnumber) {
+                high = middle - 1;
+            } else {
+                long offset = this.contents.getLong(entry + 4);
+                byte[] encoded = new byte[this.contents.getShort(entry + 12) & 0xFFFF];
+                if (offset < 0 || offset + encoded.length > this.contents.limit()) {
+                    throw new IOException("Voter key directory is truncated");
+                }
+                this.contents.get((int) offset, encoded);
+                return CryptoCache.keyFactory().generatePublic(new X509EncodedKeySpec(encoded));
+            }
+        }
+        return null;
+    }
+
+    static void write(String fileName, int[] vnumbers, byte[][] keys) throws IOException {
+        Integer[] order = new Integer[vnumbers.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(vnumbers[a], vnumbers[b]));
+
+        try (FileChannel out = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer index = ByteBuffer.allocate(HEADER_LENGTH + vnumbers.length * ENTRY_LENGTH);
+            index.putInt(MAGIC).putInt(vnumbers.length);
+            long offset = index.capacity();
+            for (int i : order) {
+                index.putInt(vnumbers[i]).putLong(offset).putShort((short) keys[i].length);
+                offset += keys[i].length;
+            }
+            index.flip();
+            while (index.hasRemaining()) {
+                out.write(index);
+            }
+            for (int i : order) {
+                ByteBuffer key = ByteBuffer.wrap(keys[i]);
+                while (key.hasRemaining()) {
+                    out.write(key);
+                }
+            }
+            out.force(true);
+        }
+    }
+
+    // Builds the directory from the <vnumber>_public.key files that clients write under keys/
+    public static void main(String[] args) {
+        String keysDirectory = args.length > 0 ? args[0] : "keys";
+        String output = args.length > 1 ? args[1] : "voterkeys";
+        File[] files = new File(keysDirectory).listFiles((dir, name) -> name.endsWith("_public.key"));
+        if (files == null) {
+            System.err.println("Key directory " + keysDirectory + " does not exist");
+            System.exit(1);
+        }
+        int[] vnumbers = new int[files.length];
+        byte[][] keys = new byte[files.length][];
+        int count = 0;
+        try {
+            for (File keyFile : files) {
+                String vnumber = keyFile.getName().substring(0, keyFile.getName().length() - "_public.key".length());
+                long key = VoterRegistry.parseKey(vnumber);
+                if (key == VoterRegistry.NO_KEY) {
+                    System.out.println("Skipping " + keyFile.getName() + ", not a registration number");
+                    continue;
+                }
+                vnumbers[count] = (int) key;
+                keys[count] = Files.readAllBytes(keyFile.toPath());
+                count++;
+            }
+            write(output, Arrays.copyOf(vnumbers, count), Arrays.copyOf(keys, count));
+        } catch (IOException ex) {
+            ServerUtil.handleException(ex, "I/O Error occurred while building voter key directory");
+        }
+        System.out.println("Wrote " + count + " voter keys to " + output);
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Log-linear histogram of nanosecond latencies in the style of HdrHistogram: values below 128 ns are counted
+ * exactly, above that every power of two is split into 64 buckets and a percentile is reported as its bucket's
+ * midpoint, within 0.8% of the recorded value. Recording is lock-free and allocation-free, so it can stay on in
+ * production.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        this.counts.incrementAndGet(index(value));
+        this.total.increment();
+        this.sum.add(value);
+        this.max.accumulate(value);
+    }
+
+    // Convenience for timing a section started with System.nanoTime()
+    void recordSince(long started) {
+        this.record(System.nanoTime() - started);
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    // Midpoint of the values that share the bucket
+    private static long value(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long low = (long) ((index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return low + (1L << (shift - 1));
+    }
+
+    long count() {
+        return this.total.sum();
+    }
+
+    long max() {
+        return this.max.get();
+    }
+
+    double mean() {
+        long count = this.count();
+        return count == 0 ? 0.0 : (double) this.sum.sum() / count;
+    }
+
+    // Smallest recorded value that at least the given percentage of recordings do not exceed
+    long percentile(double percent) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = this.counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(value(i), this.max());
+            }
+        }
+        return this.max();
+    }
+
+    // One line summary in microseconds, e.g. for reports and metric dumps
+    String summary() {
+        return String.format("count=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f (us)",
+                this.count(), this.mean() / 1e3, this.percentile(50) / 1e3, this.percentile(90) / 1e3,
+                this.percentile(99) / 1e3, this.percentile(99.9) / 1e3, this.max() / 1e3);
+    }
+}
@@ -0,0 +1,431 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Headless booths for sizing a facility: each session thread logs in as the next voter from a voterinfo style
+ * file, performs a number of menu actions drawn from the configured mix with think time in between, and quits.
+ * Login and action latencies are recorded in histograms and reported with the overall throughput.
+ */
+public class LoadGenerator {
+    private static final long BACKOFF = 100;
+
+    // A connection to one node, kept from voter to voter when the booth is a kiosk
+    private static class Link {
+        final InetSocketAddress node;
+        final Socket socket;
+        final DataOutputStream out;
+        final DataInputStream in;
+
+        Link(InetSocketAddress nodeIn) throws IOException {
+            this.node = nodeIn;
+            this.socket = new Socket(nodeIn.getHostString(), nodeIn.getPort());
+            this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+        }
+
+        void close() throws IOException {
+            this.socket.close();
+        }
+    }
+
+    private final String serverDomain;
+    private final int portNumber;
+    private final List<String[]> voters;
+    private final int sessions;
+    private final long duration;
+    private final long thinkTime;
+    private final int actionsPerSession;
+    private final int[] mix; // cumulative weights for vote, history, result
+    private final double resumeRate;
+    private final boolean kiosk; // Keeps each booth's connection across voters, logging out instead of quitting
+    private final List<Cluster.Partition> partitions; // Routes each voter straight to its node, null without a cluster
+    private final ClientUtil util = new ClientUtil();
+    private final HashMap<String, byte[]> signatures = new HashMap<String, byte[]>(); // Filled before any booth starts
+    private final AtomicInteger nextVoter = new AtomicInteger();
+    private PublicKey serverKey;
+    private volatile boolean running = true;
+
+    private final LatencyHistogram loginLatency = new LatencyHistogram();
+    private final LatencyHistogram resumeLatency = new LatencyHistogram();
+    private final LatencyHistogram voteLatency = new LatencyHistogram();
+    private final LatencyHistogram resultLatency = new LatencyHistogram();
+    private final LatencyHistogram historyLatency = new LatencyHistogram();
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder redirected = new LongAdder();
+    private final LongAdder ballots = new LongAdder();
+    private final LongAdder alreadyVoted = new LongAdder();
+    private final LongAdder unconfirmed = new LongAdder();
+    private final LongAdder histories = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    private LoadGenerator(String serverDomainIn, int portNumberIn, List<String[]> votersIn) throws IOException {
+        this.serverDomain = serverDomainIn;
+        this.portNumber = portNumberIn;
+        this.voters = votersIn;
+        this.sessions = Integer.getInteger("load.sessions", 100);
+        this.duration = Long.getLong("load.duration", 60000);
+        this.thinkTime = Long.getLong("load.thinkTime", 0);
+        this.actionsPerSession = Integer.getInteger("load.actions", 2);
+        this.mix = parseMix(System.getProperty("load.mix", "vote=1,history=0,result=1"));
+        this.resumeRate = Double.parseDouble(System.getProperty("load.resume", "0"));
+        this.kiosk = Boolean.getBoolean("load.kiosk");
+        String clusterFile = System.getProperty("load.cluster");
+        this.partitions = clusterFile == null ? null : Cluster.parse(clusterFile);
+    }
+
+    // "vote=2,result=1" style weights, actions that are left out get no weight
+    private static int[] parseMix(String spec) {
+        int[] weights = new int[3];
+        for (String entry : spec.split(",")) {
+            String[] pair = entry.trim().split("=");
+            int weight = Integer.parseInt(pair[1].trim());
+            if (pair[0].trim().equals("vote")) {
+                weights[0] = weight;
+            } else if (pair[0].trim().equals("history")) {
+                weights[1] = weight;
+            } else if (pair[0].trim().equals("result")) {
+                weights[2] = weight;
+            } else {
+                throw new IllegalArgumentException("Unknown action " + pair[0] + " in load.mix");
+            }
+        }
+        weights[1] += weights[0];
+        weights[2] += weights[1];
+        if (weights[2] <= 0) {
+            throw new IllegalArgumentException("load.mix gives every action a weight of zero");
+        }
+        return weights;
+    }
+
+    private static List<String[]> readVoters(String fileName) throws IOException {
+        ArrayList<String[]> voters = new ArrayList<String[]>();
+        for (String line : Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            String[] nameVnumber = line.trim().split(" ");
+            if (nameVnumber.length == 2) {
+                voters.add(nameVnumber);
+            }
+        }
+        return voters;
+    }
+
+    private void run() throws InterruptedException {
+        this.serverKey = this.util.getServerKey();
+        try {
+            // Any missing key pair is created here, before the booths start, rather than by several booths at once
+            this.signAll();
+        } catch (GeneralSecurityException ex) {
+            ClientUtil.handleException(ex, "Could not sign a login with the client key");
+        }
+        Thread[] booths = new Thread[this.sessions];
+        long started = System.nanoTime();
+        for (int i = 0; i < booths.length; i++) {
+            booths[i] = new Thread(this::booth, "booth-" + i);
+            booths[i].start();
+        }
+
+        long reportInterval = Long.getLong("load.reportInterval", 5000);
+        long end = System.currentTimeMillis() + this.duration;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.max(1, Math.min(reportInterval, end - System.currentTimeMillis())));
+            System.out.printf("%6.1f s  logins=%d ballots=%d errors=%d%n", (System.nanoTime() - started) / 1e9,
+                    this.logins.sum(), this.ballots.sum(), this.errors.sum());
+        }
+        this.running = false;
+        for (Thread booth : booths) {
+            booth.join();
+        }
+        this.report((System.nanoTime() - started) / 1e9);
+    }
+
+    private void booth() {
+        Link link = null;
+        while (this.running) {
+            String[] voter = this.voters.get(Math.floorMod(this.nextVoter.getAndIncrement(), this.voters.size()));
+            try {
+                link = this.session(link, voter[0], voter[1]);
+            } catch (IOException ex) {
+                // session() has closed the connection, the next voter starts on a new one
+                link = null;
+                this.errors.increment();
+                this.pause(BACKOFF);
+            }
+        }
+        if (link != null) {
+            try {
+                this.leave(link);
+            } catch (IOException ex) {
+                this.errors.increment();
+            }
+        }
+    }
+
+    // One voter from login to QUIT. A kiosk ends with LOGOUT instead and returns its connection for the next voter
+    private Link session(Link reuse, String name, String vnumber) throws IOException {
+        InetSocketAddress node = this.route(vnumber);
+        Link link = reuse;
+        if (link != null && !link.node.equals(node)) {
+            this.leave(link);
+            link = null;
+        }
+        if (link == null) {
+            link = new Link(node);
+        }
+        try {
+            byte[] signature = this.signatures.get(vnumber);
+
+            long started = System.nanoTime();
+            SessionCipher session = new SessionCipher(this.util.createSessionKey());
+            Protocol.Frame reply = this.login(link, session, name, vnumber, signature);
+            if (reply.type == Protocol.REDIRECT) {
+                // This node does not own the voter, log in again on the one it points to
+                this.redirected.increment();
+                node = Protocol.decodeRedirect(this.util.decrypt(session, Protocol.REDIRECT, reply.payload));
+                link.close();
+                link = new Link(node);
+                session = new SessionCipher(this.util.createSessionKey());
+                reply = this.login(link, session, name, vnumber, signature);
+            }
+            if (reply.type == Protocol.BUSY) {
+                // Turned away by admission control and closed by the server, back off before the next voter
+                this.busy.increment();
+                link.close();
+                this.pause(BACKOFF);
+                return null;
+            }
+            if (reply.type != Protocol.STATUS) {
+                throw new ProtocolException("Expected message type " + Protocol.STATUS + " but received " + reply.type);
+            }
+            byte[] status = this.util.decrypt(session, Protocol.STATUS, reply.payload);
+            this.loginLatency.recordSince(started);
+            if (status[0] != 1) {
+                // The server closes the connection after a refused login
+                this.refused.increment();
+                link.close();
+                return null;
+            }
+            this.logins.increment();
+
+            if (status.length > 1 && ThreadLocalRandom.current().nextDouble() < this.resumeRate) {
+                // Drops the connection after login and resumes on a new one, as a booth does after a network blip
+                link.close();
+                link = new Link(node);
+                started = System.nanoTime();
+                byte[] ticket = Arrays.copyOfRange(status, 1, status.length);
+                byte[] nonce = SessionCipher.nonce();
+                Protocol.writeFrame(link.out, Protocol.RESUME, Protocol.encodeResume(ticket,
+                        this.util.encrypt(new SessionCipher(session.getKey()), Protocol.RESUME, nonce)));
+                link.out.flush();
+                reply = Protocol.readFrame(link.in);
+                if (reply.type != Protocol.STATUS) {
+                    this.refused.increment();
+                    link.close();
+                    return null;
+                }
+                Protocol.Resumed resumed = Protocol.decodeResumed(reply.payload);
+                session = this.util.resumedSession(session.getKey(), nonce, resumed.nonce);
+                if (this.util.decrypt(session, Protocol.STATUS, resumed.sealed)[0] != 1) {
+                    this.refused.increment();
+                    link.close();
+                    return null;
+                }
+                this.resumeLatency.recordSince(started);
+                this.resumed.increment();
+            }
+
+            for (int i = 0; i < this.actionsPerSession && this.running; i++) {
+                this.think();
+                int pick = ThreadLocalRandom.current().nextInt(this.mix[2]);
+                if (pick < this.mix[0]) {
+                    this.vote(link.out, link.in, session);
+                } else if (pick < this.mix[1]) {
+                    started = System.nanoTime();
+                    this.send(link.out, session, Protocol.HISTORY);
+                    reply = Protocol.readFrame(link.in, Protocol.RECORD);
+                    this.util.decrypt(session, Protocol.RECORD, reply.payload);
+                    this.historyLatency.recordSince(started);
+                    this.histories.increment();
+                } else {
+                    started = System.nanoTime();
+                    this.send(link.out, session, Protocol.RESULT);
+                    reply = Protocol.readFrame(link.in, Protocol.RESULTS);
+                    this.util.decrypt(session, Protocol.RESULTS, reply.payload);
+                    this.resultLatency.recordSince(started);
+                }
+            }
+            if (this.kiosk) {
+                this.send(link.out, session, Protocol.LOGOUT);
+                return link;
+            }
+            this.send(link.out, session, Protocol.QUIT);
+            link.close();
+            return null;
+        } catch (IOException | RuntimeException ex) {
+            link.close();
+            throw ex;
+        }
+    }
+
+    // A kiosk closing its connection between voters, QUIT needs no session key there
+    private void leave(Link link) throws IOException {
+        try {
+            Protocol.writeFrame(link.out, Protocol.QUIT, new byte[0]);
+            link.out.flush();
+        } finally {
+            link.close();
+        }
+    }
+
+    private InetSocketAddress route(String vnumber) {
+        Cluster.Partition owner = this.partitions == null ? null : Cluster.owner(this.partitions, vnumber);
+        if (owner == null) {
+            return InetSocketAddress.createUnresolved(this.serverDomain, this.portNumber);
+        }
+        return InetSocketAddress.createUnresolved(owner.host, owner.port);
+    }
+
+    // HELLO and LOGIN in one write, returning the server's STATUS or, in a cluster, REDIRECT
+    private Protocol.Frame login(Link link, SessionCipher session, String name, String vnumber, byte[] signature)
+            throws IOException {
+        Protocol.writeFrame(link.out, Protocol.HELLO, this.util.wrapSessionKey(this.serverKey, session.getKey()));
+        Protocol.writeFrame(link.out, Protocol.LOGIN, this.util.encrypt(session, Protocol.LOGIN,
+                Protocol.encodeLogin(name, vnumber, signature)));
+        link.out.flush();
+        return Protocol.readFrame(link.in);
+    }
+
+    // Menu action 1 and, if the voter may still vote, a ballot for a random candidate
+    private void vote(DataOutputStream out, DataInputStream in, SessionCipher session) throws IOException {
+        long started = System.nanoTime();
+        this.send(out, session, Protocol.VOTE);
+        Protocol.Frame reply = Protocol.readFrame(in);
+        byte[] payload = this.util.decrypt(session, reply.type, reply.payload);
+        if (reply.type != Protocol.CANDIDATES) {
+            this.voteLatency.recordSince(started);
+            this.alreadyVoted.increment();
+            return;
+        }
+        int choice = ThreadLocalRandom.current().nextInt(Protocol.decodeStrings(payload).size());
+        Protocol.writeFrame(out, Protocol.BALLOT,
+                this.util.encrypt(session, Protocol.BALLOT, ByteBuffer.allocate(4).putInt(choice).array()));
+        out.flush();
+        byte status = this.readStatus(in, session);
+        if (status == 1) {
+            this.ballots.increment();
+        } else if (status == 2) {
+            this.unconfirmed.increment();
+        } else {
+            this.alreadyVoted.increment();
+        }
+        this.voteLatency.recordSince(started);
+    }
+
+    private void send(DataOutputStream out, SessionCipher session, byte action) throws IOException {
+        Protocol.writeFrame(out, action, this.util.encrypt(session, action, new byte[0]));
+        out.flush();
+    }
+
+    private byte readStatus(DataInputStream in, SessionCipher session) throws IOException {
+        return this.readAccepted(in, session)[0];
+    }
+
+    // The status byte, followed by a resumption ticket when a login or resume was accepted
+    private byte[] readAccepted(DataInputStream in, SessionCipher session) throws IOException {
+        Protocol.Frame status = Protocol.readFrame(in, Protocol.STATUS);
+        return this.util.decrypt(session, Protocol.STATUS, status.payload);
+    }
+
+    // RSA signatures over the name are deterministic, so each voter is signed once and the booths stay cheap
+    private void signAll() throws GeneralSecurityException {
+        long started = System.nanoTime();
+        for (String[] voter : this.voters) {
+            if (!this.signatures.containsKey(voter[1])) {
+                KeyPair clientKeys = this.util.getClientKeys(voter[1]);
+                Signature nameSig = CryptoCache.signature();
+                nameSig.initSign(clientKeys.getPrivate());
+                nameSig.update(voter[0].getBytes());
+                this.signatures.put(voter[1], nameSig.sign());
+            }
+        }
+        System.out.printf("Signed %d voters in %.1f s%n", this.signatures.size(), (System.nanoTime() - started) / 1e9);
+    }
+
+    // Exponentially distributed around the configured mean, like voters reading the screen
+    private void think() {
+        if (this.thinkTime > 0) {
+            this.pause((long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * this.thinkTime));
+        }
+    }
+
+    private void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            this.running = false;
+        }
+    }
+
+    private void report(double seconds) {
+        System.out.println();
+        System.out.printf("%d sessions for %.1f s against %s:%d%s%n", this.sessions, seconds,
+                this.serverDomain, this.portNumber, this.kiosk ? " over kiosk connections" : "");
+        System.out.printf("logins   %d (%.1f/s), resumed %d, redirected %d, refused %d, busy %d, errors %d%n",
+                this.logins.sum(), this.logins.sum() / seconds, this.resumed.sum(), this.redirected.sum(),
+                this.refused.sum(), this.busy.sum(), this.errors.sum());
+        System.out.printf("ballots  %d (%.1f/s), unconfirmed %d, already voted %d, history requests %d%n",
+                this.ballots.sum(), this.ballots.sum() / seconds, this.unconfirmed.sum(), this.alreadyVoted.sum(),
+                this.histories.sum());
+        System.out.println("login    " + this.loginLatency.summary());
+        System.out.println("resume   " + this.resumeLatency.summary());
+        System.out.println("vote     " + this.voteLatency.summary());
+        System.out.println("result   " + this.resultLatency.summary());
+        System.out.println("history  " + this.historyLatency.summary());
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: java LoadGenerator <server> <port> <voter file>");
+            System.exit(1);
+        }
+        try {
+            List<String[]> voters = readVoters(args[2]);
+            if (voters.isEmpty()) {
+                System.err.println("No voters in " + args[2]);
+                System.exit(1);
+            }
+            new LoadGenerator(args[0], Integer.parseInt(args[1]), voters).run();
+        } catch (NumberFormatException ex) {
+            ClientUtil.handleException(ex, "Invalid port number or load setting, not a number");
+        } catch (IllegalArgumentException ex) {
+            ClientUtil.handleException(ex, "Invalid load.mix, expected e.g. vote=1,history=0,result=1");
+        } catch (IOException ex) {
+            ClientUtil.handleException(ex, "I/O error occurred while reading the voter or cluster file");
+        } catch (InterruptedException ex) {
+            ClientUtil.handleException(ex, "Interrupted while waiting for booths to finish");
+        }
+    }
+}
@@ -0,0 +1,177 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+/*
+ * Server-wide counters and latency histograms. Updates are LongAdder increments and lock-free histogram
+ * records, so they stay on in production; readers (JMX and the optional dump file) pay for aggregation.
+ */
+final class Metrics {
+    static final String OBJECT_NAME = "VotingFacility:type=Metrics";
+
+    private static final Map<String, LongAdder> COUNTERS = new LinkedHashMap<String, LongAdder>();
+    private static final Map<String, LatencyHistogram> HISTOGRAMS = new LinkedHashMap<String, LatencyHistogram>();
+
+    static final LongAdder ACCEPTED = counter("connections.accepted");
+    static final LongAdder ACCEPT_FAILED = counter("connections.acceptFailed");
+    static final LongAdder REUSED = counter("connections.reused");
+    static final LongAdder ACTIVE_SESSIONS = counter("sessions.active");
+    static final LongAdder IDLE_CLOSED = counter("sessions.idleClosed");
+    static final LongAdder SESSIONS_FAILED = counter("sessions.failed");
+    static final LongAdder LOGINS = counter("logins.accepted");
+    static final LongAdder LOGINS_REFUSED = counter("logins.refused");
+    static final LongAdder LOGINS_RESUMED = counter("logins.resumed");
+    static final LongAdder RESUME_REFUSED = counter("logins.resumeRefused");
+    static final LongAdder REDIRECTED = counter("logins.redirected");
+    static final LongAdder LOGINS_QUEUED = counter("logins.queued");
+    static final LongAdder LOGINS_THROTTLED = counter("logins.throttled");
+    static final LongAdder LOGINS_REJECTED = counter("logins.rejected");
+    static final LongAdder BALLOTS = counter("ballots.cast");
+    static final LongAdder BALLOTS_UNCONFIRMED = counter("ballots.unconfirmed");
+    static final LongAdder JOURNAL_BATCHES = counter("journal.batches");
+    static final LongAdder CRYPTO_STALLED = counter("crypto.stalled");
+    static final LongAdder REPLICATED_BATCHES = counter("replication.batches");
+    static final LongAdder STANDBY_LOST = counter("replication.standbyLost");
+
+    static final LatencyHistogram CRYPTO_QUEUE = histogram("cryptoQueue"); // waiting for the crypto stage or a slot
+    static final LatencyHistogram HANDSHAKE = histogram("handshake");      // unwrapping the session key
+    static final LatencyHistogram DECRYPT = histogram("decrypt");          // opening a client message
+    static final LatencyHistogram VERIFY = histogram("verify");            // login signature check
+    static final LatencyHistogram LOOKUP = histogram("lookup");            // voter roll lookup
+    static final LatencyHistogram HISTORY = histogram("history");          // building a vote history reply
+    static final LatencyHistogram BALLOT_COMMIT = histogram("ballotCommit"); // castVote including the journal wait
+    static final LatencyHistogram JOURNAL_FSYNC = histogram("journalFsync"); // forcing one batch to disk
+
+    private Metrics() {}
+
+    private static LongAdder counter(String name) {
+        LongAdder counter = new LongAdder();
+        COUNTERS.put(name, counter);
+        return counter;
+    }
+
+    private static LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        HISTOGRAMS.put(name, histogram);
+        return histogram;
+    }
+
+    // Registers the JMX view and, when a file is given, rewrites it with a text dump every interval ms
+    static void publish(String dumpFile, long interval) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new View(), new ObjectName(OBJECT_NAME));
+        } catch (JMException ex) {
+            ServerUtil.handleException(ex, "Could not register metrics with JMX");
+        }
+        if (dumpFile == null || interval <= 0) {
+            return;
+        }
+        Thread dumper = new Thread(() -> {
+            Path target = Paths.get(dumpFile);
+            Path temporary = Paths.get(dumpFile + ".tmp");
+            while (true) {
+                try {
+                    Thread.sleep(interval);
+                    Files.write(temporary, dump().getBytes(StandardCharsets.UTF_8));
+                    Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (IOException ex) {
+                    System.err.println("Could not write metrics to " + dumpFile + ": " + ex.getMessage());
+                }
+            }
+        }, "metrics-dump");
+        dumper.setDaemon(true);
+        dumper.start();
+    }
+
+    static String dump() {
+        StringBuilder text = new StringBuilder();
+        text.append("# ").append(Instant.now()).append('\n');
+        for (Map.Entry<String, LongAdder> counter : COUNTERS.entrySet()) {
+            text.append(counter.getKey()).append(' ').append(counter.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : HISTOGRAMS.entrySet()) {
+            text.append(histogram.getKey()).append(' ').append(histogram.getValue().summary()).append('\n');
+        }
+        return text.toString();
+    }
+
+    // Counters as longs, and per histogram its count, p50, p99 and max in microseconds
+    private static class View implements DynamicMBean {
+        private final LinkedHashMap<String, Supplier<Object>> attributes = new LinkedHashMap<String, Supplier<Object>>();
+
+        View() {
+            for (Map.Entry<String, LongAdder> counter : COUNTERS.entrySet()) {
+                LongAdder value = counter.getValue();
+                this.attributes.put(counter.getKey(), value::sum);
+            }
+            for (Map.Entry<String, LatencyHistogram> entry : HISTOGRAMS.entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                this.attributes.put(entry.getKey() + ".count", histogram::count);
+                this.attributes.put(entry.getKey() + ".p50Micros", () -> histogram.percentile(50) / 1e3);
+                this.attributes.put(entry.getKey() + ".p99Micros", () -> histogram.percentile(99) / 1e3);
+                this.attributes.put(entry.getKey() + ".maxMicros", () -> histogram.max() / 1e3);
+            }
+        }
+
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            Supplier<Object> value = this.attributes.get(name);
+            if (value == null) {
+                throw new AttributeNotFoundException(name);
+            }
+            return value.get();
+        }
+
+        public AttributeList getAttributes(String[] names) {
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                Supplier<Object> value = this.attributes.get(name);
+                if (value != null) {
+                    list.add(new Attribute(name, value.get()));
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributeList) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("Metrics have no operations");
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            ArrayList<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+            for (Map.Entry<String, Supplier<Object>> attribute : this.attributes.entrySet()) {
+                String type = (attribute.getKey().endsWith("Micros") ? Double.class : Long.class).getName();
+                infos.add(new MBeanAttributeInfo(attribute.getKey(), type, attribute.getKey(), true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Voting facility metrics",
+                    infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+class Protocol {
+    static final byte VERSION = 1;
+    static final int HEADER_LENGTH = 6;
+    static final int MAX_PAYLOAD = 16384;
+
+    // Menu actions keep the codes the client used to send with writeShort
+    static final byte VOTE = 1;
+    static final byte HISTORY = 2;
+    static final byte RESULT = 3;
+    static final byte QUIT = 4;
+    static final byte LOGOUT = 5;   // A kiosk ending one voter's session, the connection waits for the next HELLO
+
+    static final byte HELLO = 16;
+    static final byte LOGIN = 17;
+    static final byte BALLOT = 18;
+    static final byte RESUME = 19;
+    static final byte TALLY = 20;   // A cluster peer asking for this node's local counts
+    static final byte STATUS = 32;
+    static final byte CANDIDATES = 33;
+    static final byte RESULTS = 34;
+    static final byte REFUSED = 35; // Resumption ticket not accepted, carry on with HELLO; sent in the clear
+    static final byte REDIRECT = 36; // The voter belongs to another cluster node: host and port as strings
+    static final byte RECORD = 37;   // Reply to HISTORY: vote time, facility and receipt, or nothing before voting
+    static final byte BUSY = 38;     // Login turned away by admission control, retry later; sent in the clear
+
+    static class Frame {
+        final byte type;
+        final byte[] payload;
+
+        Frame(byte typeIn, byte[] payloadIn) {
+            this.type = typeIn;
+            this.payload = payloadIn;
+        }
+    }
+
+    static class Login {
+        final String name;
+        final String vnumber;
+        final byte[] signature;
+
+        Login(String nameIn, String vnumberIn, byte[] signatureIn) {
+            this.name = nameIn;
+            this.vnumber = vnumberIn;
+            this.signature = signatureIn;
+        }
+    }
+
+    static class Resume {
+        final byte[] ticket;
+        final byte[] proof; // The client's nonce sealed under the ticket's session key
+
+        Resume(byte[] ticketIn, byte[] proofIn) {
+            this.ticket = ticketIn;
+            this.proof = proofIn;
+        }
+    }
+
+    // The STATUS accepting a resume: the server's nonce in the clear, as the client needs it to derive the key
+    // the rest of the reply is sealed under
+    static class Resumed {
+        final byte[] nonce;
+        final byte[] sealed;
+
+        Resumed(byte[] nonceIn, byte[] sealedIn) {
+            this.nonce = nonceIn;
+            this.sealed = sealedIn;
+        }
+    }
+
+    static void writeFrame(DataOutputStream out, byte type, byte[] payload) throws IOException {
+        out.writeByte(VERSION);
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    static Frame readFrame(DataInputStream in) throws IOException {
+        byte version = in.readByte();
+        byte type = in.readByte();
+        int length = in.readInt();
+        checkHeader(version, length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(type, payload);
+    }
+
+    static Frame readFrame(DataInputStream in, byte expected) throws IOException {
+        Frame frame = readFrame(in);
+        if (frame.type != expected) {
+            throw new ProtocolException("Expected message type " + expected + " but received " + frame.type);
+        }
+        return frame;
+    }
+
+    // Returns null until the buffer, in read mode, holds a whole frame
+    static Frame decode(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return null;
+        }
+        int start = buffer.position();
+        byte version = buffer.get(start);
+        byte type = buffer.get(start + 1);
+        int length = buffer.getInt(start + 2);
+        checkHeader(version, length);
+        if (buffer.remaining() < HEADER_LENGTH + length) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        buffer.position(start + HEADER_LENGTH);
+        buffer.get(payload);
+        return new Frame(type, payload);
+    }
+
+    static ByteBuffer encode(Frame frame) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + frame.payload.length);
+        buffer.put(VERSION).put(frame.type).putInt(frame.payload.length).put(frame.payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    static void checkHeader(byte version, int length) throws ProtocolException {
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported protocol version " + version);
+        }
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new ProtocolException("Frame payload of " + length + " bytes is outside 0 - " + MAX_PAYLOAD);
+        }
+    }
+
+    static byte[] encodeLogin(String name, String vnumber, byte[] signature) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] vnumberBytes = vnumber.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(6 + nameBytes.length + vnumberBytes.length + signature.length);
+        buffer.putShort((short) nameBytes.length).put(nameBytes);
+        buffer.putShort((short) vnumberBytes.length).put(vnumberBytes);
+        buffer.putShort((short) signature.length).put(signature);
+        return buffer.array();
+    }
+
+    static Login decodeLogin(byte[] payload) throws ProtocolException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            String name = getString(buffer);
+            String vnumber = getString(buffer);
+            byte[] signature = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(signature);
+            return new Login(name, vnumber, signature);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException ex) {
+            throw new ProtocolException("Malformed login message");
+        }
+    }
+
+    static byte[] encodeResume(byte[] ticket, byte[] proof) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 + ticket.length + proof.length);
+        buffer.putShort((short) ticket.length).put(ticket).put(proof);
+        return buffer.array();
+    }
+
+    static Resume decodeResume(byte[] payload) throws ProtocolException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            byte[] ticket = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(ticket);
+            byte[] proof = new byte[buffer.remaining()];
+            buffer.get(proof);
+            return new Resume(ticket, proof);
+        } catch (BufferUnderflowException ex) {
+            throw new ProtocolException("Malformed resume message");
+        }
+    }
+
+    static byte[] encodeResumed(byte[] nonce, byte[] sealed) {
+        return ByteBuffer.allocate(nonce.length + sealed.length).put(nonce).put(sealed).array();
+    }
+
+    static Resumed decodeResumed(byte[] payload) throws ProtocolException {
+        if (payload.length < SessionCipher.NONCE_LENGTH) {
+            throw new ProtocolException("Malformed resume reply");
+        }
+        return new Resumed(Arrays.copyOf(payload, SessionCipher.NONCE_LENGTH),
+                Arrays.copyOfRange(payload, SessionCipher.NONCE_LENGTH, payload.length));
+    }
+
+    // A login or resume STATUS of 1 is followed by a fresh resumption ticket, older clients only read the first byte
+    static byte[] encodeAccepted(byte[] ticket) {
+        return ByteBuffer.allocate(1 + ticket.length).put((byte) 1).put(ticket).array();
+    }
+
+    static byte[] encodeRedirect(String host, int port) {
+        return encodeStrings(List.of(host, String.valueOf(port)));
+    }
+
+    static InetSocketAddress decodeRedirect(byte[] payload) throws ProtocolException {
+        List<String> address = decodeStrings(payload);
+        try {
+            return InetSocketAddress.createUnresolved(address.get(0), Integer.parseInt(address.get(1)));
+        } catch (IndexOutOfBoundsException | IllegalArgumentException ex) {
+            throw new ProtocolException("Malformed redirect message");
+        }
+    }
+
+    static byte[] encodeStrings(List<String> values) {
+        ArrayList<byte[]> encoded = new ArrayList<byte[]>(values.size());
+        int length = 2;
+        for (String value : values) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            length += 2 + bytes.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putShort((short) encoded.size());
+        for (byte[] bytes : encoded) {
+            buffer.putShort((short) bytes.length).put(bytes);
+        }
+        return buffer.array();
+    }
+
+    static ArrayList<String> decodeStrings(byte[] payload) throws ProtocolException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            int count = buffer.getShort() & 0xFFFF;
+            ArrayList<String> values = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                values.add(getString(buffer));
+            }
+            return values;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException ex) {
+            throw new ProtocolException("Malformed string list message");
+        }
+    }
+
+    static byte[] encodeResult(List<String> candidates, long[] counts) {
+        byte[] names = encodeStrings(candidates);
+        ByteBuffer buffer = ByteBuffer.allocate(names.length + 8 * counts.length);
+        buffer.put(names);
+        for (long count : counts) {
+            buffer.putLong(count);
+        }
+        return buffer.array();
+    }
+
+    static LinkedHashMap<String, Long> decodeResult(byte[] payload) throws ProtocolException {
+        ArrayList<String> candidates = decodeStrings(payload);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(payload, payload.length - 8 * candidates.size(), 8 * candidates.size());
+            LinkedHashMap<String, Long> result = new LinkedHashMap<String, Long>();
+            for (String candidate : candidates) {
+                result.put(candidate, buffer.getLong());
+            }
+            return result;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            throw new ProtocolException("Malformed result message");
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
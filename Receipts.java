@@ -0,0 +1,60 @@
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Answers "my vote history" from the voter roll, which already indexes every voter's vote time by registration
+ * number in memory (or off-heap) and is restored from the snapshot, so no history file is read. The receipt is an
+ * HMAC of the registration number and vote time under a key derived from the server private key: it is recomputed
+ * on demand, matches on every node or standby sharing that key and across restarts, and says nothing of the ballot.
+ */
+class Receipts {
+    static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int RECEIPT_BYTES = 8;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final SecretKeySpec key;
+    private final String facility;
+
+    Receipts(PrivateKey serverKey, String facilityIn) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update("vf-receipt".getBytes());
+        this.key = new SecretKeySpec(digest.digest(serverKey.getEncoded()), MAC_ALGORITHM);
+        this.facility = facilityIn;
+    }
+
+    // Vote time, facility and receipt for a voter who has voted, an empty list otherwise
+    byte[] encodeRecord(Voter voter) throws GeneralSecurityException {
+        if (!voter.getVoted()) {
+            return Protocol.encodeStrings(List.of());
+        }
+        String voteTime = voter.getVoteTime();
+        return Protocol.encodeStrings(List.of(voteTime, this.facility, this.receipt(voter.getVnumber(), voteTime)));
+    }
+
+    // Over the vote time in milliseconds, so receipts survive a move between heap and columnar storage
+    String receipt(String vnumber, String voteTime) throws GeneralSecurityException {
+        String stamp;
+        try {
+            stamp = Long.toString(Instant.parse(voteTime).toEpochMilli());
+        } catch (DateTimeParseException ex) {
+            stamp = voteTime;
+        }
+        Mac mac = CryptoCache.mac();
+        mac.init(this.key);
+        byte[] digest = mac.doFinal((vnumber + " " + stamp).getBytes());
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < RECEIPT_BYTES; i++) {
+            if (i > 0 && i % 2 == 0) {
+                text.append('-');
+            }
+            text.append(HEX[(digest[i] >> 4) & 0xF]).append(HEX[digest[i] & 0xF]);
+        }
+        return text.toString();
+    }
+}
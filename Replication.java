@@ -0,0 +1,295 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/*
+ * Primary side of replication. A standby Vf connects to -Dvf.replicationPort and proves it holds the server key
+ * pair. It is then sent the voted set and committed counts as of one journal batch, followed by every later batch
+ * as the journal writes it. Batches are pipelined: the journal queues them without waiting for the standby, up to
+ * the window, and the standby acknowledges the highest sequence it has made durable, so one acknowledgement covers
+ * every batch it had read by then. With sync durability a vote returns only once the standby has acknowledged it
+ * too, and once a standby has been in sync its loss holds votes back until one attaches again, since it may be
+ * taking over. Until a standby first gets in sync the primary carries on alone.
+ *
+ * Records travel as the journal writes them, history lines and shuffled ballots apart, so the stream links no
+ * voter to a ballot any more than the files do.
+ */
+class Replication {
+    static final byte HELLO = 1;     // standby: session key wrapped with the server key, signed with the server key
+    static final byte STATE = 2;     // voted records: vnumber, vote time
+    static final byte STATE_END = 3; // sequence the state covers, committed count per candidate
+    static final byte BATCH = 4;     // sequence, history records, ballots
+    static final byte HEARTBEAT = 5; // sequence of the last batch sent
+    static final byte ACK = 6;       // standby: highest sequence durable on the standby
+
+    static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+    static final long HEARTBEAT_INTERVAL = 1000;
+    private static final int STATE_CHUNK = 8192;
+
+    private static class Link {
+        final Socket socket;
+        final DataOutputStream out;
+        final SessionCipher session;
+        final ArrayBlockingQueue<Protocol.Frame> queue;
+        volatile boolean open = true;
+        boolean synced;    // the state has been queued, only touched by the journal thread
+        long lastSequence; // only touched by the sender thread
+
+        Link(Socket socketIn, DataOutputStream outIn, SessionCipher sessionIn, int window) {
+            this.socket = socketIn;
+            this.out = outIn;
+            this.session = sessionIn;
+            this.queue = new ArrayBlockingQueue<Protocol.Frame>(window);
+        }
+    }
+
+    private final ServerSocket listen;
+    private final KeyPair serverKeys;
+    private final BallotJournal journal;
+    private final int timeout;
+    private final int window;
+    private volatile Link link;
+
+    Replication(int port, KeyPair serverKeysIn, BallotJournal journalIn, int timeoutIn, int windowIn)
+            throws IOException {
+        this.listen = new ServerSocket(port);
+        this.serverKeys = serverKeysIn;
+        this.journal = journalIn;
+        this.timeout = timeoutIn;
+        this.window = windowIn;
+    }
+
+    void start() {
+        this.journal.replicateTo(this);
+        Thread acceptor = new Thread(this::acceptLoop, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // One standby at a time: this thread reads its acknowledgements until it goes away, then accepts the next
+    private void acceptLoop() {
+        while (!this.listen.isClosed()) {
+            Link attached = null;
+            try (Socket socket = this.listen.accept()) {
+                socket.setSoTimeout(this.timeout);
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                SessionCipher session = this.accept(Protocol.readFrame(in, HELLO).payload);
+                attached = new Link(socket, out, session, this.window);
+                this.link = attached;
+                Link sending = attached;
+                Thread sender = new Thread(() -> this.sendLoop(sending), "replication-send");
+                sender.setDaemon(true);
+                sender.start();
+                System.out.println("Standby " + socket.getRemoteSocketAddress() + " attached, sending state");
+                this.journal.requestState();
+                while (true) {
+                    Protocol.Frame ack = read(in, session);
+                    if (ack.type != ACK || ack.payload.length != 8) {
+                        throw new ProtocolException("Expected an acknowledgement from the standby");
+                    }
+                    this.journal.replicaAcknowledged(ByteBuffer.wrap(ack.payload).getLong());
+                }
+            } catch (IOException | GeneralSecurityException ex) {
+                if (this.listen.isClosed()) {
+                    return;
+                }
+                if (attached == null) {
+                    System.err.println("Refused standby connection: " + ex);
+                    continue;
+                }
+                this.link = null;
+                attached.open = false;
+                Metrics.STANDBY_LOST.increment();
+                if (this.journal.replicaDetached()) {
+                    System.err.println("Lost standby, votes wait for a standby to attach so it cannot take over "
+                            + "without them: " + ex);
+                } else {
+                    System.err.println("Lost standby, continuing without replication: " + ex);
+                }
+            }
+        }
+    }
+
+    private SessionCipher accept(byte[] hello) throws ProtocolException, GeneralSecurityException {
+        ByteBuffer buffer = ByteBuffer.wrap(hello);
+        int wrappedLength = hello.length < 2 ? -1 : buffer.getShort() & 0xFFFF;
+        if (wrappedLength < 0 || wrappedLength > buffer.remaining()) {
+            throw new ProtocolException("Malformed standby hello");
+        }
+        byte[] wrapped = new byte[wrappedLength];
+        buffer.get(wrapped);
+        byte[] signature = new byte[buffer.remaining()];
+        buffer.get(signature);
+        Signature verifier = CryptoCache.signature();
+        verifier.initVerify(this.serverKeys.getPublic());
+        verifier.update(wrapped);
+        if (!verifier.verify(signature)) {
+            throw new GeneralSecurityException("Standby does not hold the server key pair");
+        }
+        Cipher unwrap = CryptoCache.wrapCipher();
+        unwrap.init(Cipher.UNWRAP_MODE, this.serverKeys.getPrivate());
+        return new SessionCipher((SecretKey) unwrap.unwrap(wrapped, SessionCipher.KEY_ALGORITHM, Cipher.SECRET_KEY));
+    }
+
+    // Standby side of the handshake: only a holder of the server private key can sign the wrapped session key
+    static SessionCipher hello(DataOutputStream out, KeyPair serverKeys) throws IOException, GeneralSecurityException {
+        KeyGenerator generator = KeyGenerator.getInstance(SessionCipher.KEY_ALGORITHM);
+        generator.init(SessionCipher.KEY_SIZE);
+        SessionCipher session = new SessionCipher(generator.generateKey());
+        Cipher wrap = CryptoCache.wrapCipher();
+        wrap.init(Cipher.WRAP_MODE, serverKeys.getPublic());
+        byte[] wrapped = wrap.wrap(session.getKey());
+        Signature signer = CryptoCache.signature();
+        signer.initSign(serverKeys.getPrivate());
+        signer.update(wrapped);
+        byte[] signature = signer.sign();
+        Protocol.writeFrame(out, HELLO, ByteBuffer.allocate(2 + wrapped.length + signature.length)
+                .putShort((short) wrapped.length).put(wrapped).put(signature).array());
+        out.flush();
+        return session;
+    }
+
+    private void sendLoop(Link current) {
+        try {
+            while (current.open) {
+                Protocol.Frame frame = current.queue.poll(HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    frame = new Protocol.Frame(HEARTBEAT, ByteBuffer.allocate(8).putLong(current.lastSequence).array());
+                } else if (frame.type == BATCH || frame.type == STATE_END) {
+                    current.lastSequence = ByteBuffer.wrap(frame.payload).getLong();
+                }
+                write(current.out, current.session, frame.type, frame.payload);
+                if (frame.type == BATCH) {
+                    Metrics.REPLICATED_BATCHES.increment();
+                }
+                if (current.queue.isEmpty()) {
+                    current.out.flush();
+                }
+            }
+        } catch (InterruptedException ex) {
+            return;
+        } catch (IOException | GeneralSecurityException ex) {
+            // Closing the socket fails the acknowledgement read as well, which detaches the standby
+            try {
+                current.socket.close();
+            } catch (IOException closeEx) {
+                // Already detaching, nothing more to do with this socket
+            }
+        }
+    }
+
+    // Called by the journal thread with a batch as written to history and ballots; blocks only while the window is full
+    void send(long sequence, List<String> history, List<String> ballots) {
+        Link current = this.link;
+        if (current == null || !current.synced) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream payload = new DataOutputStream(bytes)) {
+            payload.writeLong(sequence);
+            payload.writeInt(history.size());
+            for (String line : history) {
+                payload.writeUTF(line.substring(0, line.length() - 1));
+            }
+            payload.writeInt(ballots.size());
+            for (String ballot : ballots) {
+                payload.writeUTF(ballot.substring(0, ballot.length() - 1));
+            }
+        } catch (IOException ex) {
+            ServerUtil.handleException(ex, "I/O Error occurred while encoding a replication batch");
+        }
+        this.enqueue(current, new Protocol.Frame(BATCH, bytes.toByteArray()));
+    }
+
+    // Called by the journal thread at a batch boundary: every voted record, then the counts that match them
+    void sendState(long sequence, VoterRegistry voters, int[] votedKeys, Map<String, Integer> committed) {
+        Link current = this.link;
+        if (current == null) {
+            return;
+        }
+        try {
+            for (int start = 0; start < votedKeys.length; start += STATE_CHUNK) {
+                int end = Math.min(votedKeys.length, start + STATE_CHUNK);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream payload = new DataOutputStream(bytes);
+                payload.writeInt(end - start);
+                for (int i = start; i < end; i++) {
+                    payload.writeInt(votedKeys[i]);
+                    payload.writeUTF(voters.get(votedKeys[i]).getVoteTime());
+                }
+                this.enqueue(current, new Protocol.Frame(STATE, bytes.toByteArray()));
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(bytes);
+            payload.writeLong(sequence);
+            payload.writeInt(committed.size());
+            for (Map.Entry<String, Integer> entry : committed.entrySet()) {
+                payload.writeUTF(entry.getKey());
+                payload.writeLong(entry.getValue());
+            }
+            this.enqueue(current, new Protocol.Frame(STATE_END, bytes.toByteArray()));
+        } catch (IOException ex) {
+            ServerUtil.handleException(ex, "I/O Error occurred while encoding the replication state");
+        }
+        current.synced = true;
+    }
+
+    private void enqueue(Link current, Protocol.Frame frame) {
+        try {
+            while (current.open && !current.queue.offer(frame, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS)) {
+                // Window full: wait for the sender, or for the standby to be given up on
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static void write(DataOutputStream out, SessionCipher session, byte type, byte[] payload)
+            throws IOException, GeneralSecurityException {
+        Protocol.writeFrame(out, type, session.encrypt(type, payload));
+    }
+
+    // Same header as the booth protocol, with a limit sized for state chunks instead of menu messages
+    static Protocol.Frame read(DataInputStream in, SessionCipher session) throws IOException, GeneralSecurityException {
+        byte version = in.readByte();
+        byte type = in.readByte();
+        int length = in.readInt();
+        if (version != Protocol.VERSION || length < 0 || length > MAX_PAYLOAD) {
+            throw new ProtocolException("Malformed replication frame of type " + type + " and length " + length);
+        }
+        byte[] sealed = new byte[length];
+        in.readFully(sealed);
+        return new Protocol.Frame(type, session.decrypt(type, sealed));
+    }
+
+    void close() {
+        try {
+            this.listen.close();
+        } catch (IOException ex) {
+            ServerUtil.handleException(ex, "I/O error occurred when closing the replication socket");
+        }
+        Link current = this.link;
+        if (current != null) {
+            current.open = false;
+        }
+    }
+}
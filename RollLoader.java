@@ -0,0 +1,314 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+class RollLoader {
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+
+    // data is the chunk as mapped from the file, read in place with absolute gets
+    interface ChunkParser<T> {
+        T parse(ByteBuffer data, int length);
+    }
+
+    interface LineVisitor {
+        void visit(ByteBuffer data, int start, int end);
+    }
+
+    private RollLoader() {}
+
+    static <T> List<T> parse(String fileName, ChunkParser<T> parser) throws IOException {
+        return parse(fileName, 0, parser);
+    }
+
+    // Splits the file past offset into chunks ending on line boundaries, parses them in parallel, results in file order
+    static <T> List<T> parse(String fileName, long offset, ChunkParser<T> parser) throws IOException {
+        try (FileChannel file = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long size = file.size();
+            ArrayList<Long> boundaries = new ArrayList<Long>();
+            boundaries.add(Math.min(offset, size));
+            ByteBuffer probe = ByteBuffer.allocate(4096);
+            long next = offset + CHUNK_SIZE;
+            while (next < size) {
+                long lineEnd = -1;
+                long position = next;
+                while (lineEnd < 0 && position < size) {
+                    probe.clear();
+                    int read = file.read(probe, position);
+                    for (int i = 0; i < read; i++) {
+                        if (probe.get(i) == '\n') {
+                            lineEnd = position + i + 1;
+                            break;
+                        }
+                    }
+                    position += read;
+                }
+                if (lineEnd < 0 || lineEnd >= size) {
+                    break;
+                }
+                boundaries.add(lineEnd);
+                next = lineEnd + CHUNK_SIZE;
+            }
+            boundaries.add(size);
+            return ForkJoinPool.commonPool().invoke(new ChunkTask<T>(file, boundaries, 0, boundaries.size() - 1, parser));
+        }
+    }
+
+    @SuppressWarnings("serial") // Only ever run in this process, never serialized
+    private static class ChunkTask<T> extends RecursiveTask<List<T>> {
+        private final FileChannel file;
+        private final List<Long> boundaries;
+        private final int low;
+        private final int high;
+        private final ChunkParser<T> parser;
+
+        ChunkTask(FileChannel fileIn, List<Long> boundariesIn, int lowIn, int highIn, ChunkParser<T> parserIn) {
+            this.file = fileIn;
+            this.boundaries = boundariesIn;
+            this.low = lowIn;
+            this.high = highIn;
+            this.parser = parserIn;
+        }
+
+        @Override
+        protected List<T> compute() {
+            if (this.high - this.low > 1) {
+                int middle = (this.low + this.high) >>> 1;
+                ChunkTask<T> left = new ChunkTask<T>(this.file, this.boundaries, this.low, middle, this.parser);
+                ChunkTask<T> right = new ChunkTask<T>(this.file, this.boundaries, middle, this.high, this.parser);
+                left.fork();
+                List<T> merged = new ArrayList<T>(right.compute());
+                merged.addAll(0, left.join());
+                return merged;
+            }
+            ArrayList<T> single = new ArrayList<T>(1);
+            long start = this.boundaries.get(this.low);
+            int length = (int) (this.boundaries.get(this.high) - start);
+            if (length == 0) {
+                return single;
+            }
+            try {
+                MappedByteBuffer mapped = this.file.map(FileChannel.MapMode.READ_ONLY, start, length);
+                single.add(this.parser.parse(mapped, length));
+            } catch (IOException ex) {
+                ServerUtil.handleException(ex, "I/O Error occurred while mapping a chunk of the file");
+            }
+            return single;
+        }
+    }
+
+    // Calls the visitor for every non-blank line, without the line terminator or trailing spaces
+    static void forEachLine(ByteBuffer data, int length, LineVisitor visitor) {
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && data.get(end) != '\n') {
+                end++;
+            }
+            int next = end + 1;
+            while (end > start && (data.get(end - 1) == '\r' || data.get(end - 1) == ' ')) {
+                end--;
+            }
+            if (end > start) {
+                visitor.visit(data, start, end);
+            }
+            start = next;
+        }
+    }
+
+    // Position of the only space in the line, or -1 unless the line is two non-empty fields
+    static int splitPair(ByteBuffer data, int start, int end) {
+        int space = -1;
+        for (int i = start; i < end; i++) {
+            if (data.get(i) == ' ') {
+                if (space >= 0) {
+                    return -1;
+                }
+                space = i;
+            }
+        }
+        return space > start ? space : -1;
+    }
+
+    // Same result as VoterRegistry.parseKey(string(data, start, end)) without building the string
+    static long parseKey(ByteBuffer data, int start, int end) {
+        if (end <= start || end - start > 10) {
+            return VoterRegistry.NO_KEY;
+        }
+        long key = 0;
+        for (int i = start; i < end; i++) {
+            byte digit = data.get(i);
+            if (digit < '0' || digit > '9') {
+                return VoterRegistry.NO_KEY;
+            }
+            key = key * 10 + (digit - '0');
+        }
+        return key > Integer.MAX_VALUE ? VoterRegistry.NO_KEY : key;
+    }
+
+    private static boolean matches(String value, ByteBuffer data, int start, int end) {
+        if (value.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) != data.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String string(ByteBuffer data, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        data.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static VoterRegistry loadVoters(String fileName) throws IOException {
+        long started = System.nanoTime();
+        // Each chunk keeps its mapping and the field bounds of every row, so the registry decides how to store them
+        List<VoterRows> chunks = parse(fileName, (data, length) -> {
+            VoterRows rows = new VoterRows(data);
+            forEachLine(data, length, (line, start, end) -> {
+                int space = splitPair(line, start, end);
+                if (space >= 0) {
+                    rows.add(start, space, end);
+                }
+            });
+            return rows;
+        });
+        int rows = 0;
+        for (VoterRows chunk : chunks) {
+            rows += chunk.count;
+        }
+        VoterRegistry registry = VoterRegistry.create(rows);
+        int skipped = 0;
+        int padded = 0;
+        for (VoterRows chunk : chunks) {
+            for (int i = 0; i < chunk.count * 3; i += 3) {
+                int[] bounds = chunk.bounds;
+                int vnumberStart = bounds[i + 1] + 1;
+                if (registry.add(chunk.data, bounds[i], bounds[i + 1], vnumberStart, bounds[i + 2])) {
+                    if (chunk.data.get(vnumberStart) == '0' && bounds[i + 2] - vnumberStart > 1) {
+                        padded++;
+                    }
+                } else {
+                    skipped++;
+                    skipVoter(registry, chunk.data, bounds[i], bounds[i + 1], vnumberStart, bounds[i + 2]);
+                }
+            }
+        }
+        report(fileName, rows - skipped, started);
+        if (skipped > 0) {
+            System.out.println("Skipped " + skipped + " voters in " + fileName + ", they cannot log in until fixed");
+        }
+        if (padded > 0) {
+            // "0123" is stored as 123, so a voter has to enter it with its zeros exactly as listed
+            System.out.println(padded + " registration numbers in " + fileName + " have leading zeros");
+        }
+        return registry;
+    }
+
+    // A number that is not one, or one that collides with a voter already on the roll, including "0123" and "123"
+    private static void skipVoter(VoterRegistry registry, ByteBuffer data, int nameStart, int nameEnd, int vnumberStart,
+            int vnumberEnd) {
+        String line = string(data, nameStart, nameEnd) + " " + string(data, vnumberStart, vnumberEnd);
+        long key = parseKey(data, vnumberStart, vnumberEnd);
+        if (key == VoterRegistry.NO_KEY) {
+            System.out.println("Skipping voter with an invalid registration number: " + line);
+        } else {
+            Voter holder = registry.get((int) key);
+            System.out.println("Skipping voter whose registration number is already taken by " + holder.getName()
+                    + " " + holder.getVnumber() + ": " + line);
+        }
+    }
+
+    private static class VoterRows {
+        final ByteBuffer data;
+        int[] bounds = new int[3 * 1024];
+        int count;
+
+        VoterRows(ByteBuffer dataIn) {
+            this.data = dataIn;
+        }
+
+        void add(int start, int space, int end) {
+            if (this.count * 3 == this.bounds.length) {
+                this.bounds = Arrays.copyOf(this.bounds, this.bounds.length * 2);
+            }
+            this.bounds[this.count * 3] = start;
+            this.bounds[this.count * 3 + 1] = space;
+            this.bounds[this.count * 3 + 2] = end;
+            this.count++;
+        }
+    }
+
+    // Applies the history records that start at or after offset, a snapshot already covers the ones before it
+    static int loadHistory(String fileName, long offset, VoterRegistry voters) throws IOException {
+        long started = System.nanoTime();
+        int rows = 0;
+        for (int[] applied : parse(fileName, offset, (data, length) -> {
+            int[] count = new int[1];
+            forEachLine(data, length, (line, start, end) -> {
+                int space = splitPair(line, start, end);
+                if (space >= 0) {
+                    long key = parseKey(line, start, space);
+                    Voter voter = key == VoterRegistry.NO_KEY ? null : voters.get((int) key);
+                    if (voter != null && matches(voter.getVnumber(), line, start, space)) {
+                        voter.setVoted();
+                        voter.setVoteTime(string(line, space + 1, end));
+                        count[0]++;
+                    }
+                }
+            });
+            return count;
+        })) {
+            rows += applied[0];
+        }
+        report(fileName, rows, started);
+        return rows;
+    }
+
+    static ArrayList<String> loadCandidates(String fileName) throws IOException {
+        ArrayList<String> candidates = new ArrayList<String>();
+        for (ArrayList<String> chunk : parse(fileName, (data, length) -> {
+            ArrayList<String> lines = new ArrayList<String>();
+            forEachLine(data, length, (line, start, end) -> lines.add(string(line, start, end)));
+            return lines;
+        })) {
+            candidates.addAll(chunk);
+        }
+        return candidates;
+    }
+
+    static HashMap<String, Integer> loadBallots(String fileName) throws IOException {
+        HashMap<String, Integer> ballots = new HashMap<String, Integer>();
+        for (HashMap<String, Integer> chunk : parse(fileName, (data, length) -> {
+            HashMap<String, Integer> counts = new HashMap<String, Integer>();
+            forEachLine(data, length, (line, start, end) -> {
+                if (line.get(start) != '#') {
+                    counts.merge(string(line, start, end), 1, Integer::sum);
+                }
+            });
+            return counts;
+        })) {
+            chunk.forEach((candidate, count) -> ballots.merge(candidate, count, Integer::sum));
+        }
+        return ballots;
+    }
+
+    private static void report(String fileName, int rows, long started) {
+        double seconds = (System.nanoTime() - started) / 1e9;
+        System.out.printf("Loaded %d rows from %s in %.3f s (%.0f rows/s)%n",
+                rows, fileName, seconds, seconds > 0 ? rows / seconds : 0.0);
+    }
+}
@@ -0,0 +1,404 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+class SelectorServer {
+    private static final int INITIAL_BUFFER = 1024;
+    private static final long SWEEP_INTERVAL = 1000;
+    private static final long STALL_RETRY = 10; // How soon a loop retries handing work to a full crypto stage
+
+    private static class Connection {
+        final SocketChannel channel;
+        final Session session;
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER);
+        long lastActive;
+        boolean busy; // A frame is with the crypto stage or journal: the session must not be touched, reading waits
+
+        Connection(SocketChannel channelIn, Session sessionIn) {
+            this.channel = channelIn;
+            this.session = sessionIn;
+            this.lastActive = System.currentTimeMillis();
+        }
+    }
+
+    private final ServerSocketChannel listen;
+    private final Loop[] loops;
+    private final Thread[] threads;
+    private final long idleTimeout;
+    private final Function<InetAddress, Session> sessions;
+    private final CryptoStage<Offload> crypto;
+    private volatile boolean open = true;
+
+    // One frame whose handling needs RSA, run on the crypto stage and finished by the loop that owns the connection.
+    // A ballot is handed to the journal instead and comes back with its outcome.
+    private static class Offload implements Runnable {
+        final Loop loop;
+        final SelectionKey key;
+        final Connection connection;
+        final Protocol.Frame request;
+        final long queued = System.nanoTime();
+        Protocol.Frame reply;
+        Exception failure;
+        BallotJournal.Outcome outcome;
+
+        Offload(Loop loopIn, SelectionKey keyIn, Connection connectionIn, Protocol.Frame requestIn) {
+            this.loop = loopIn;
+            this.key = keyIn;
+            this.connection = connectionIn;
+            this.request = requestIn;
+        }
+
+        public void run() {
+            Metrics.CRYPTO_QUEUE.recordSince(this.queued);
+            if (!this.key.isValid()) {
+                return; // Closed while queued, e.g. idle or shutting down, so spare the RSA work
+            }
+            try {
+                this.reply = this.connection.session.handle(this.request);
+            } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+                this.failure = ex;
+            }
+        }
+    }
+
+    SelectorServer(int portNumber, int backlog, int threadCount, int cryptoThreads, int cryptoQueue,
+            long idleTimeoutIn, Function<InetAddress, Session> sessionsIn) throws IOException {
+        this.idleTimeout = idleTimeoutIn;
+        this.sessions = sessionsIn;
+        this.crypto = new CryptoStage<Offload>("crypto", cryptoThreads, cryptoQueue, this::completed);
+        this.listen = ServerSocketChannel.open();
+        this.listen.bind(new InetSocketAddress(portNumber), backlog);
+        this.loops = new Loop[threadCount];
+        this.threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            this.loops[i] = new Loop();
+            this.threads[i] = new Thread(this.loops[i], "selector-" + i);
+            this.threads[i].start();
+        }
+    }
+
+    void run() {
+        int next = 0;
+        while (this.open) {
+            try {
+                SocketChannel channel = this.listen.accept();
+                Metrics.ACCEPTED.increment();
+                this.loops[next].add(channel);
+                next = (next + 1) % this.loops.length;
+            } catch (ClosedChannelException ex) {
+                break;
+            } catch (IOException ex) {
+                // Typically out of file descriptors, which frees up as sessions end, so keep accepting
+                Metrics.ACCEPT_FAILED.increment();
+                System.err.println("I/O error occurred when accepting a connection: " + ex);
+            }
+        }
+    }
+
+    void close() {
+        this.open = false;
+        try {
+            this.listen.close();
+            for (Loop loop : this.loops) {
+                loop.selector.wakeup();
+            }
+            for (Thread thread : this.threads) {
+                thread.join(5000);
+            }
+            this.crypto.close();
+        } catch (IOException ex) {
+            ServerUtil.handleException(ex, "I/O error occurred when closing the server channel");
+        } catch (InterruptedException ex) {
+            ServerUtil.handleException(ex, "Interrupted while waiting for selector threads to finish");
+        }
+    }
+
+    // Hands a finished batch back to the loops that own its connections, waking each of them once
+    private void completed(List<Offload> batch) {
+        ArrayList<Loop> woken = new ArrayList<Loop>(this.loops.length);
+        for (Offload offload : batch) {
+            offload.loop.completed.add(offload);
+            if (!woken.contains(offload.loop)) {
+                woken.add(offload.loop);
+            }
+        }
+        for (Loop loop : woken) {
+            loop.selector.wakeup();
+        }
+    }
+
+    private class Loop implements Runnable {
+        final Selector selector;
+        final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+        final ConcurrentLinkedQueue<Offload> completed = new ConcurrentLinkedQueue<Offload>();
+        final ArrayDeque<Offload> stalled = new ArrayDeque<Offload>(); // Refused by a full stage, oldest first
+
+        Loop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void add(SocketChannel channel) {
+            this.pending.add(channel);
+            this.selector.wakeup();
+        }
+
+        public void run() {
+            long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL;
+            while (SelectorServer.this.open) {
+                try {
+                    this.selector.select(this.stalled.isEmpty() ? SWEEP_INTERVAL : STALL_RETRY);
+                    SocketChannel accepted;
+                    while ((accepted = this.pending.poll()) != null) {
+                        this.register(accepted);
+                    }
+                    while (!this.stalled.isEmpty() && (!this.stalled.peek().key.isValid()
+                            || SelectorServer.this.crypto.submit(this.stalled.peek()))) {
+                        this.stalled.poll();
+                    }
+                    Offload done;
+                    while ((done = this.completed.poll()) != null) {
+                        this.finish(done);
+                    }
+
+                    Iterator<SelectionKey> selected = this.selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        this.process(key);
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now >= nextSweep) {
+                        this.sweep(now);
+                        nextSweep = now + SWEEP_INTERVAL;
+                    }
+                } catch (IOException ex) {
+                    ServerUtil.handleException(ex, "I/O error occurred in selector loop");
+                }
+            }
+            for (SelectionKey key : this.selector.keys()) {
+                close(key);
+            }
+            try {
+                this.selector.close();
+            } catch (IOException ex) {
+                ServerUtil.handleException(ex, "I/O error occurred when closing selector");
+            }
+        }
+
+        // A client that disconnects before it is registered only loses its own connection
+        private void register(SocketChannel accepted) {
+            try {
+                accepted.configureBlocking(false);
+                Session session = SelectorServer.this.sessions.apply(accepted.socket().getInetAddress());
+                accepted.register(this.selector, SelectionKey.OP_READ, new Connection(accepted, session));
+                Metrics.ACTIVE_SESSIONS.increment();
+            } catch (IOException ex) {
+                ServerUtil.sessionFailed(ex, "I/O error occurred when registering connection channel");
+                try {
+                    accepted.close();
+                } catch (IOException closeEx) {
+                    System.err.println("I/O error occurred when closing connection channel: " + closeEx);
+                }
+            }
+        }
+
+        // Every failure here belongs to this one connection, so it is closed and counted and the loop keeps serving
+        private void process(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    this.read(key, connection);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    write(key, connection);
+                }
+            } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+                fail(key, ex);
+            }
+        }
+
+        private void read(SelectionKey key, Connection connection) throws IOException, GeneralSecurityException {
+            if (connection.channel.read(connection.in) < 0) {
+                // A finished session is closed after its last reply is written, so this booth went away mid-session
+                throw new EOFException("Connection closed by client");
+            }
+            connection.lastActive = System.currentTimeMillis();
+            if (!connection.busy) {
+                this.handleFrames(key, connection);
+            }
+            write(key, connection);
+        }
+
+        // Handles the buffered frames in order, stopping at one that has to wait for the crypto stage
+        private void handleFrames(SelectionKey key, Connection connection) throws IOException, GeneralSecurityException {
+            connection.in.flip();
+            Protocol.Frame request;
+            while (!connection.session.isClosed() && (request = Protocol.decode(connection.in)) != null) {
+                Protocol.Frame reply;
+                if (connection.session.needsCrypto(request)) {
+                    // Admission runs here on the selector thread, so a refused login never takes a queue entry
+                    reply = connection.session.admit(request);
+                    if (reply == null && this.offload(key, connection, request)) {
+                        break;
+                    } else if (reply == null) {
+                        reply = connection.session.overloaded();
+                    }
+                } else if (connection.session.isBallot(request)) {
+                    this.castBallot(key, connection, request);
+                    break;
+                } else {
+                    reply = connection.session.handle(request);
+                }
+                if (reply != null) {
+                    connection.out.add(Protocol.encode(reply));
+                }
+            }
+            connection.in.compact();
+            if (!connection.in.hasRemaining()) {
+                // A frame larger than the buffer is in flight, decode() has already bounded its size
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(connection.in.capacity() * 2,
+                        Protocol.HEADER_LENGTH + Protocol.MAX_PAYLOAD));
+                connection.in.flip();
+                larger.put(connection.in);
+                connection.in = larger;
+            }
+        }
+
+        // False for a HELLO that finds the stage behind: a new handshake is turned away rather than held, while a
+        // LOGIN, whose handshake has already been paid for, waits its turn
+        private boolean offload(SelectionKey key, Connection connection, Protocol.Frame request) {
+            Offload offload = new Offload(this, key, connection, request);
+            boolean handshake = request.type == Protocol.HELLO;
+            if (this.stalled.isEmpty() && SelectorServer.this.crypto.submit(offload)) {
+                if (handshake) {
+                    Metrics.LOGINS_QUEUED.increment();
+                }
+            } else if (handshake) {
+                return false;
+            } else {
+                // The stage is behind: this connection stops reading, so its client waits in the TCP window
+                Metrics.CRYPTO_STALLED.increment();
+                this.stalled.add(offload);
+            }
+            connection.busy = true;
+            return true;
+        }
+
+        // The journal settles the vote on its own threads, or on this one if it need not wait, and the outcome comes
+        // back through completed like a crypto stage batch
+        private void castBallot(SelectionKey key, Connection connection, Protocol.Frame request)
+                throws ProtocolException, GeneralSecurityException {
+            Offload offload = new Offload(this, key, connection, request);
+            connection.busy = true;
+            connection.session.castBallot(request, outcome -> {
+                Metrics.BALLOT_COMMIT.recordSince(offload.queued);
+                offload.outcome = outcome;
+                this.completed.add(offload);
+                this.selector.wakeup();
+            });
+        }
+
+        // Back on the owning loop, so the connection can be used again
+        private void finish(Offload done) {
+            SelectionKey key = done.key;
+            Connection connection = done.connection;
+            connection.busy = false;
+            if (!key.isValid()) {
+                return;
+            }
+            if (done.failure != null) {
+                fail(key, done.failure);
+                return;
+            }
+            try {
+                if (done.outcome != null) {
+                    done.reply = connection.session.ballotCast(done.outcome);
+                }
+                if (done.reply != null) {
+                    connection.out.add(Protocol.encode(done.reply));
+                }
+                this.handleFrames(key, connection);
+                write(key, connection);
+            } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+                fail(key, ex);
+            }
+        }
+
+        private void sweep(long now) {
+            for (SelectionKey key : this.selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (now - connection.lastActive > SelectorServer.this.idleTimeout) {
+                    System.out.println("Session idle for " + SelectorServer.this.idleTimeout + " ms, closing connection");
+                    Metrics.IDLE_CLOSED.increment();
+                    close(key);
+                }
+            }
+        }
+    }
+
+    private static void write(SelectionKey key, Connection connection) throws IOException {
+        while (!connection.out.isEmpty()) {
+            ByteBuffer head = connection.out.peek();
+            connection.channel.write(head);
+            if (head.hasRemaining()) {
+                key.interestOps(reading(connection) | SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.out.poll();
+        }
+        if (connection.session.isClosed() && !connection.busy) {
+            close(key);
+        } else {
+            key.interestOps(reading(connection));
+        }
+    }
+
+    // Input waits in the socket while a frame is with the crypto stage, which is the backpressure on its client
+    private static int reading(Connection connection) {
+        return connection.busy ? 0 : SelectionKey.OP_READ;
+    }
+
+    private static void fail(SelectionKey key, Exception ex) {
+        String errorMessage;
+        if (ex instanceof ProtocolException) {
+            errorMessage = "Client sent a malformed or unexpected message";
+        } else if (ex instanceof IOException) {
+            errorMessage = "I/O error occurred when using connection channel";
+        } else if (ex instanceof GeneralSecurityException) {
+            errorMessage = "Client message failed decryption or signature verification";
+        } else {
+            errorMessage = "Unexpected error while serving a session";
+        }
+        ServerUtil.sessionFailed(ex, errorMessage);
+        close(key);
+    }
+
+    private static void close(SelectionKey key) {
+        if (key.isValid()) {
+            Metrics.ACTIVE_SESSIONS.decrement();
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ex) {
+            System.err.println("I/O error occurred when closing connection channel: " + ex);
+        }
+    }
+}
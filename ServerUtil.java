@@ -7,7 +7,8 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.security.InvalidKeyException;
+import java.nio.file.NoSuchFileException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidParameterException;
 import java.security.Key;
 import java.security.KeyFactory;
@@ -22,14 +23,24 @@ import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.HashMap;
 import javax.crypto.Cipher;
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SealedObject;
+import javax.crypto.SecretKey;
 
 class ServerUtil {
 
-    ServerUtil() {}
+    private KeyCache clientKey;
+    private KeyDirectory keyDirectory;
+
+    ServerUtil() {
+        this.clientKey = new KeyCache("client_public.key");
+        try {
+            this.keyDirectory = KeyDirectory.open("voterkeys");
+        } catch (IOException ex) {
+            handleException(ex, "I/O Error occurred while opening voter key directory");
+        }
+        if (this.keyDirectory != null) {
+            System.out.println("Loaded voter key directory with " + this.keyDirectory.size() + " keys");
+        }
+    }
 
     static void handleException(Exception exception, String errorMessage) {
         System.err.println(exception.getMessage());
@@ -119,64 +130,51 @@ class ServerUtil {
         return null;
     }
 
-    PublicKey getClientKey() {
+    // Errors here belong to one login, so they are left to the session rather than ending the facility
+    PublicKey getClientKey(String vnumber) throws IOException, GeneralSecurityException {
+        if (this.keyDirectory != null) {
+            long key = VoterRegistry.parseKey(vnumber);
+            return key == VoterRegistry.NO_KEY ? null : this.keyDirectory.get((int) key);
+        }
         try {
-            KeyFactory factory = KeyFactory.getInstance("RSA");
-            FileInputStream publicKeyFile = new FileInputStream("client_public.key");
-            byte[] publicKeyByte = new byte[publicKeyFile.available()];
-            publicKeyFile.read(publicKeyByte);
-            publicKeyFile.close();
-            X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(publicKeyByte);
-            return factory.generatePublic(publicKeySpec);
-        } catch (NoSuchAlgorithmException ex) {
-            handleException(ex, "No such key generator algorithm");
-        } catch (FileNotFoundException ex) {
-            handleException(ex, "Client public key file not found, run client to generate key");
+            return this.clientKey.get();
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    Snapshot getSnapshot() {
+        try {
+            return Snapshot.load("snapshot", "voterinfo", "history");
+        } catch (NoSuchFileException ex) {
+            handleException(ex, "No voter info since file not found, add file named 'voterinfo'");
         } catch (IOException ex) {
-            handleException(ex, "I/O Error occurred while reading or closing client public key file");
-        } catch (InvalidKeySpecException ex) {
-            handleException(ex, "Given key specification is inappropriate for this key factory");
+            handleException(ex, "I/O Error occurred while reading or closing snapshot file");
         }
         return null;
     }
 
-    ArrayList<Voter> getVoters() {
-        ArrayList<Voter> voters = new ArrayList<Voter>();
-        String line;
+    // Takes the roll from the snapshot when there is one and only replays the history written after it
+    VoterRegistry getVoters(Snapshot snapshot) {
+        VoterRegistry voters = VoterRegistry.create(0);
+        long historyOffset = 0;
 
-        try {
-            BufferedReader voterinfoFile = new BufferedReader(new FileReader("voterinfo"));
-            String[] voterinfo;
-            while ((line = voterinfoFile.readLine()) != null && !line.trim().isEmpty()) {
-                voterinfo = line.split(" ");
-                if (voterinfo.length == 2) {
-                    voters.add(new Voter(voterinfo[0], voterinfo[1]));
-                }
+        if (snapshot != null) {
+            voters = snapshot.voters;
+            historyOffset = snapshot.historyOffset;
+        } else {
+            try {
+                voters = RollLoader.loadVoters("voterinfo");
+            } catch (NoSuchFileException ex) {
+                handleException(ex, "No voter info since file not found, add file named 'voterinfo'");
+            } catch (IOException ex) {
+                handleException(ex, "Error when reading lines from the voterinfo file or from closing file");
             }
-            voterinfoFile.close();
-        } catch (FileNotFoundException ex) {
-            handleException(ex, "No voter info since file not found, add file named 'voterinfo'");
-        } catch (IOException ex) {
-            handleException(ex, "Error when reading lines from the voterinfo file or from closing file");
         }
 
         try {
-            BufferedReader historyFile = new BufferedReader(new FileReader("history"));
-            String[] history;
-            while ((line = historyFile.readLine()) != null && !line.trim().isEmpty()) {
-                history = line.split(" ");
-                if (history.length == 2) {
-                    for (Voter voter : voters) {
-                        if (voter.getVnumber().equals(history[0])) {
-                            voter.setVoted();
-                            voter.setVoteTime(history[1]);
-                            break;
-                        }
-                    }
-                }
-            }
-            historyFile.close();
-        } catch (FileNotFoundException ex) {
+            RollLoader.loadHistory("history", historyOffset, voters);
+        } catch (NoSuchFileException ex) {
             this.createHistory();
         } catch (IOException ex) {
             handleException(ex, "Error when reading lines from the history file or from closing file");
@@ -189,13 +187,8 @@ class ServerUtil {
         ArrayList<String> candidates = new ArrayList<String>();
 
         try {
-            BufferedReader candidateinfoFile = new BufferedReader(new FileReader("candidateinfo"));
-            String line;
-            while ((line = candidateinfoFile.readLine()) != null && !line.trim().isEmpty()) {
-                candidates.add(line);
-            }
-            candidateinfoFile.close();
-        } catch (FileNotFoundException ex) {
+            candidates = RollLoader.loadCandidates("candidateinfo");
+        } catch (NoSuchFileException ex) {
             handleException(ex, "No candidate info since file not found, add file named 'candidateinfo'");
         } catch (IOException ex) {
             handleException(ex, "Error when reading lines from the candidateinfo file or from closing file");
@@ -204,16 +197,34 @@ class ServerUtil {
         return candidates;
     }
 
-    HashMap<String,Integer> getResult() {
+    HashMap<String,Integer> getResult(Snapshot snapshot) {
         HashMap<String,Integer> result = new HashMap<String,Integer>();
 
+        if (snapshot != null && snapshot.generation == readGeneration("result")) {
+            result.putAll(snapshot.result);
+        } else {
+            this.readResult(result);
+        }
+
+        if (readGeneration("ballots") > readGeneration("result")) {
+            try {
+                RollLoader.loadBallots("ballots").forEach((candidate, count) -> result.merge(candidate, count, Integer::sum));
+            } catch (IOException ex) {
+                handleException(ex, "I/O Error occurred when replaying or closing ballots journal");
+            }
+        }
+
+        return result;
+    }
+
+    private void readResult(HashMap<String,Integer> result) {
         try {
             BufferedReader resultFile = new BufferedReader(new FileReader("result"));
             String line;
             String[] candidateVote;
             while ((line = resultFile.readLine()) != null && !line.trim().isEmpty()) {
                 candidateVote = line.split(" ");
-                if (candidateVote.length == 2) {
+                if (candidateVote.length == 2 && !line.startsWith("#")) {
                     result.put(candidateVote[0], Integer.parseInt(candidateVote[1]));
                 }
             }
@@ -229,54 +240,44 @@ class ServerUtil {
         } catch (ArrayIndexOutOfBoundsException ex) {
             handleException(ex, "Invalid history file, not in correct format <registration number> <time voted>");
         }
-
-        return result;
     }
 
-    void updateHistory(Voter voter) {
+    static long readGeneration(String fileName) {
         try {
-            BufferedWriter historyFile = new BufferedWriter(new FileWriter("history", true));
-            historyFile.write(voter.getVnumber() + " " + voter.getVoteTime());
-            historyFile.newLine();
-            historyFile.close();
+            BufferedReader file = new BufferedReader(new FileReader(fileName));
+            String header = file.readLine();
+            file.close();
+            if (header != null && header.startsWith("# ")) {
+                return Long.parseLong(header.substring(2).trim());
+            }
+        } catch (FileNotFoundException ex) {
+            return 0;
         } catch (IOException ex) {
-            handleException(ex, "I/O Error occurred while writing to or closing history file");
+            handleException(ex, "I/O Error occurred when reading header of " + fileName);
+        } catch (NumberFormatException ex) {
+            handleException(ex, "Invalid generation header in " + fileName);
         }
+        return 0;
     }
 
-    void updateResult(HashMap<String,Integer> result) {
-        try {
-            BufferedWriter resultFile = new BufferedWriter(new FileWriter("result"));
-            for(String candidate : result.keySet()) {
-                resultFile.write(candidate + " " + Integer.toString(result.get(candidate)));
-                resultFile.newLine();
-            }
-            resultFile.close();
-        } catch (IOException ex) {
-            handleException(ex, "I/O Error occurred while writing to or closing result file");
-        }
+    SecretKey unwrapSessionKey(Key serverKey, byte[] wrappedKey) throws GeneralSecurityException {
+        Cipher cipher = CryptoCache.wrapCipher();
+        cipher.init(Cipher.UNWRAP_MODE, serverKey);
+        return (SecretKey) cipher.unwrap(wrappedKey, SessionCipher.KEY_ALGORITHM, Cipher.SECRET_KEY);
     }
 
-    Object decrypt(Key key, SealedObject encrypted) {
-        try {
-            Cipher cipher = Cipher.getInstance("RSA");
-            cipher.init(Cipher.DECRYPT_MODE, key);
-            return encrypted.getObject(cipher);
-        } catch (NoSuchPaddingException ex) {
-            handleException(ex, "Transformation contains a padding scheme that is not available");
-        } catch (NoSuchAlgorithmException ex) {
-            handleException(ex, "No such cipher algorithm");
-        } catch (InvalidKeyException ex) {
-            handleException(ex, "Invalid key for initializing the cipher");
-        } catch (IllegalBlockSizeException ex) {
-            handleException(ex, "Invalid cipher block size");
-        } catch (IOException ex) {
-            handleException(ex, "I/O Error occurred during de-serialization");
-        } catch (ClassNotFoundException ex) {
-            handleException(ex, "Class not found, error occurred during de-serialization");
-        } catch (BadPaddingException ex) {
-            handleException(ex, "Input data does not have proper expected padding bytes");
-        }
-        return null;
+    byte[] encrypt(SessionCipher session, byte type, byte[] message) throws GeneralSecurityException {
+        return session.encrypt(type, message);
+    }
+
+    // Throws AEADBadTagException when the message was not sealed under this session's key
+    byte[] decrypt(SessionCipher session, byte type, byte[] encrypted) throws GeneralSecurityException {
+        return session.decrypt(type, encrypted);
+    }
+
+    // Logs a failure that ends one connection and counts it, the facility keeps serving everyone else
+    static void sessionFailed(Exception exception, String errorMessage) {
+        Metrics.SESSIONS_FAILED.increment();
+        System.err.println(errorMessage + ": " + exception);
     }
 }
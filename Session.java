@@ -0,0 +1,332 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.function.Consumer;
+
+class Session {
+    enum State {
+        HELLO,
+        LOGIN,
+        MENU,
+        PEER, // A cluster node polling this one for its tally
+        REJECTED, // Told BUSY after HELLO, waiting for the LOGIN sent along with it before closing
+        CLOSED
+    }
+
+    private final ServerUtil util;
+    private final KeyPair serverKeys;
+    private final VoterRegistry voters;
+    private final Tally tally;
+    private final BallotJournal journal;
+    private final Tickets tickets;
+    private final Cluster cluster;
+    private final Receipts receipts;
+    private final Admission admission;
+    private final InetAddress peer;
+    private State state;
+    private SessionCipher cipher;
+    private Voter current;
+    private Tickets.Ticket ticket; // The last one handed out, revoked when the voter leaves
+    private byte[] wrappedKey; // From HELLO, kept until LOGIN in case this turns out to be a peer's signed TALLY
+    private int ballot; // Candidate of a ballot the selector loop has cast, kept until ballotCast()
+
+    Session(ServerUtil utilIn, KeyPair serverKeysIn, VoterRegistry votersIn, Tally tallyIn, BallotJournal journalIn,
+            Tickets ticketsIn, Cluster clusterIn, Receipts receiptsIn, Admission admissionIn, InetAddress peerIn) {
+        this.util = utilIn;
+        this.serverKeys = serverKeysIn;
+        this.voters = votersIn;
+        this.tally = tallyIn;
+        this.journal = journalIn;
+        this.tickets = ticketsIn;
+        this.cluster = clusterIn;
+        this.receipts = receiptsIn;
+        this.admission = admissionIn;
+        this.peer = peerIn;
+        this.state = State.HELLO;
+    }
+
+    State getState() {
+        return this.state;
+    }
+
+    boolean isClosed() {
+        return this.state == State.CLOSED;
+    }
+
+    // Unwrapping the session key and checking the login or peer signature are RSA operations, everything else is cheap
+    boolean needsCrypto(Protocol.Frame request) {
+        return (this.state == State.HELLO && request.type == Protocol.HELLO)
+                || (this.state == State.LOGIN && (request.type == Protocol.LOGIN || request.type == Protocol.TALLY));
+    }
+
+    // A ballot, which the selector loop casts with castBallot(request, done) rather than handle(): with sync
+    // durability its reply waits for the journal, and the loop must not
+    boolean isBallot(Protocol.Frame request) {
+        return this.state == State.MENU && request.type == Protocol.BALLOT;
+    }
+
+    // Checks the ballot and hands it to the journal. done gets the outcome on whichever thread settles it, and the
+    // loop then makes the reply with ballotCast(). Until then nothing else may use this session
+    void castBallot(Protocol.Frame request, Consumer<BallotJournal.Outcome> done)
+            throws ProtocolException, GeneralSecurityException {
+        this.ballot = this.ballotOrdinal(this.decrypt(Protocol.BALLOT, request.payload));
+        this.journal.castVote(this.current, this.tally.candidate(this.ballot), done);
+    }
+
+    Protocol.Frame ballotCast(BallotJournal.Outcome outcome) throws GeneralSecurityException {
+        return this.ballotReply(this.ballot, outcome);
+    }
+
+    // Called before a frame that needsCrypto() is queued for RSA. A malformed one fails the session, one from an
+    // address over its login rate gets the BUSY reply to send; null lets it through
+    Protocol.Frame admit(Protocol.Frame request) throws ProtocolException {
+        this.admission.checkSize(request);
+        if (request.type == Protocol.HELLO && !this.admission.admitAddress(this.peer)) {
+            Metrics.LOGINS_THROTTLED.increment();
+            return this.busy();
+        }
+        return null;
+    }
+
+    // The BUSY reply for a HELLO that found the crypto stage full
+    Protocol.Frame overloaded() {
+        Metrics.LOGINS_REJECTED.increment();
+        return this.busy();
+    }
+
+    // Advances the session by one client frame and returns the reply to send, if any. Any exception ends only
+    // this session: the caller closes its connection and counts the failure
+    Protocol.Frame handle(Protocol.Frame request) throws IOException, GeneralSecurityException {
+        switch (this.state) {
+            case HELLO:
+                if (request.type == Protocol.RESUME) {
+                    return this.resume(Protocol.decodeResume(request.payload));
+                } else if (request.type == Protocol.QUIT) {
+                    // A kiosk closing between voters, there is no session key to seal it with
+                    this.state = State.CLOSED;
+                    return null;
+                }
+                expect(request, Protocol.HELLO);
+                long started = System.nanoTime();
+                this.cipher = new SessionCipher(
+                        this.util.unwrapSessionKey(this.serverKeys.getPrivate(), request.payload));
+                Metrics.HANDSHAKE.recordSince(started);
+                this.wrappedKey = request.payload;
+                this.state = State.LOGIN;
+                return null;
+            case LOGIN:
+                byte[] wrapped = this.wrappedKey;
+                this.wrappedKey = null;
+                if (request.type == Protocol.TALLY && this.cluster != null) {
+                    return this.peerHello(wrapped, request);
+                }
+                expect(request, Protocol.LOGIN);
+                return this.login(Protocol.decodeLogin(this.decrypt(Protocol.LOGIN, request.payload)));
+            case MENU:
+                return this.menu(request);
+            case PEER:
+                expect(request, Protocol.TALLY);
+                return this.localTally(request);
+            case REJECTED:
+                // Read rather than left unread, closing on unread input would reset the connection before BUSY arrives
+                expect(request, Protocol.LOGIN);
+                this.state = State.CLOSED;
+                return null;
+            default:
+                throw new ProtocolException("Session is already closed");
+        }
+    }
+
+    private Protocol.Frame login(Protocol.Login login) throws IOException, GeneralSecurityException {
+        Cluster.Partition owner = this.cluster == null ? null : this.cluster.redirect(login.vnumber);
+        if (owner != null) {
+            // Before the signature check, the owning node does that
+            Metrics.REDIRECTED.increment();
+            this.state = State.CLOSED;
+            return this.reply(Protocol.REDIRECT, Protocol.encodeRedirect(owner.host, owner.port));
+        }
+        if (!this.admission.admitVoter(login.vnumber, this.peer)) {
+            // Before the signature check, so guessing at one voter's login costs the server no RSA
+            Metrics.LOGINS_THROTTLED.increment();
+            this.state = State.CLOSED;
+            return new Protocol.Frame(Protocol.BUSY, new byte[0]);
+        }
+        PublicKey clientKey = this.util.getClientKey(login.vnumber);
+        if (clientKey == null) {
+            System.out.println("No public key registered for voter " + login.vnumber);
+        } else if (verify(clientKey, login)) {
+            long started = System.nanoTime();
+            this.current = this.voters.authenticate(login.name, login.vnumber);
+            Metrics.LOOKUP.recordSince(started);
+        } else {
+            System.out.println("Digital Signature did not verify correctly");
+        }
+
+        if (this.current != null) {
+            Metrics.LOGINS.increment();
+            this.state = State.MENU;
+            this.ticket = this.tickets.create(login.vnumber, this.cipher.getKey());
+            return this.reply(Protocol.STATUS, Protocol.encodeAccepted(this.tickets.issue(this.ticket)));
+        }
+        Metrics.LOGINS_REFUSED.increment();
+        this.admission.voterFailed(login.vnumber, this.peer);
+        this.state = State.CLOSED;
+        return this.status(0);
+    }
+
+    // A valid ticket skips HELLO and LOGIN. Otherwise the client is told in the clear and may start over with HELLO.
+    // Each ticket is good for one resume, the session carries on under a key derived for this connection and with
+    // a renewed ticket for that key
+    private Protocol.Frame resume(Protocol.Resume resume) throws ProtocolException, GeneralSecurityException {
+        Tickets.Ticket presented = this.tickets.open(resume.ticket);
+        Voter voter = presented == null ? null : this.voters.get(presented.vnumber);
+        if (voter == null) {
+            Metrics.RESUME_REFUSED.increment();
+            return new Protocol.Frame(Protocol.REFUSED, new byte[0]);
+        }
+        // Only the holder of the session key can seal the nonce
+        byte[] clientNonce = this.util.decrypt(new SessionCipher(presented.key), Protocol.RESUME, resume.proof);
+        if (clientNonce.length != SessionCipher.NONCE_LENGTH) {
+            throw new ProtocolException("Malformed resume message");
+        }
+        if (!this.tickets.spend(presented)) {
+            Metrics.RESUME_REFUSED.increment();
+            return new Protocol.Frame(Protocol.REFUSED, new byte[0]);
+        }
+        byte[] serverNonce = SessionCipher.nonce();
+        this.cipher = new SessionCipher(SessionCipher.derive(presented.key, clientNonce, serverNonce));
+        this.current = voter;
+        this.state = State.MENU;
+        Metrics.LOGINS_RESUMED.increment();
+        this.ticket = this.tickets.create(presented.vnumber, this.cipher.getKey());
+        byte[] accepted = Protocol.encodeAccepted(this.tickets.issue(this.ticket));
+        return new Protocol.Frame(Protocol.STATUS, Protocol.encodeResumed(serverNonce,
+                this.util.encrypt(this.cipher, Protocol.STATUS, accepted)));
+    }
+
+    // A node's first poll: the wrapped session key from its HELLO, signed with the server key the cluster shares,
+    // as the standby proves itself to Replication. Anyone else who sends TALLY fails the session
+    private Protocol.Frame peerHello(byte[] wrapped, Protocol.Frame request) throws GeneralSecurityException {
+        byte[] proof = this.decrypt(Protocol.TALLY, request.payload);
+        Signature verifier = CryptoCache.signature();
+        verifier.initVerify(this.serverKeys.getPublic());
+        verifier.update(wrapped);
+        if (!verifier.verify(proof)) {
+            throw new GeneralSecurityException("Tally request not signed with the server key");
+        }
+        this.state = State.PEER;
+        return this.reply(Protocol.RESULTS, this.tally.snapshot().encoded);
+    }
+
+    private Protocol.Frame localTally(Protocol.Frame request) throws GeneralSecurityException {
+        this.decrypt(Protocol.TALLY, request.payload);
+        return this.reply(Protocol.RESULTS, this.tally.snapshot().encoded);
+    }
+
+    private Protocol.Frame menu(Protocol.Frame request) throws ProtocolException, GeneralSecurityException {
+        byte action = request.type;
+        byte[] payload = this.decrypt(action, request.payload);
+        if (action == Protocol.VOTE) {
+            if (this.current.getVoted()) {
+                return this.status(0);
+            }
+            return this.reply(Protocol.CANDIDATES, Protocol.encodeStrings(this.tally.votable()));
+        } else if (action == Protocol.BALLOT) {
+            return this.castBallot(payload);
+        } else if (action == Protocol.HISTORY) {
+            long started = System.nanoTime();
+            byte[] record = this.receipts.encodeRecord(this.current);
+            Metrics.HISTORY.recordSince(started);
+            return this.reply(Protocol.RECORD, record);
+        } else if (action == Protocol.RESULT) {
+            byte[] result = this.cluster == null ? this.tally.snapshot().encoded : this.cluster.result(this.tally);
+            return this.reply(Protocol.RESULTS, result);
+        } else if (action == Protocol.QUIT) {
+            this.tickets.revoke(this.ticket);
+            this.state = State.CLOSED;
+        } else if (action == Protocol.LOGOUT) {
+            // The next voter at this kiosk starts over with their own session key on the same connection
+            Metrics.REUSED.increment();
+            this.tickets.revoke(this.ticket);
+            this.ticket = null;
+            this.current = null;
+            this.cipher = null;
+            this.state = State.HELLO;
+        } else {
+            throw new ProtocolException("Unknown menu action " + action);
+        }
+        return null;
+    }
+
+    private Protocol.Frame castBallot(byte[] payload) throws ProtocolException, GeneralSecurityException {
+        int ordinal = this.ballotOrdinal(payload);
+        long started = System.nanoTime();
+        BallotJournal.Outcome outcome = this.journal.castVote(this.current, this.tally.candidate(ordinal));
+        Metrics.BALLOT_COMMIT.recordSince(started);
+        return this.ballotReply(ordinal, outcome);
+    }
+
+    private int ballotOrdinal(byte[] payload) throws ProtocolException {
+        if (payload.length != 4) {
+            throw new ProtocolException("Malformed ballot message");
+        }
+        int ordinal = ByteBuffer.wrap(payload).getInt();
+        if (!this.tally.isCandidate(ordinal)) {
+            throw new ProtocolException("Ballot for unknown candidate " + ordinal);
+        }
+        return ordinal;
+    }
+
+    // castVote() lets exactly one session per voter through, so the tally is only ever incremented once
+    private Protocol.Frame ballotReply(int ordinal, BallotJournal.Outcome outcome) throws GeneralSecurityException {
+        if (outcome == BallotJournal.Outcome.ALREADY_VOTED) {
+            return this.status(0);
+        }
+        // An unconfirmed ballot is still in the journal here, so it is counted, but the booth hears status 2
+        Metrics.BALLOTS.increment();
+        this.tally.increment(ordinal);
+        return this.status(outcome == BallotJournal.Outcome.CAST ? 1 : 2);
+    }
+
+    private static boolean verify(PublicKey clientKey, Protocol.Login login) throws GeneralSecurityException {
+        long started = System.nanoTime();
+        Signature nameSig = CryptoCache.signature();
+        nameSig.initVerify(clientKey);
+        nameSig.update(login.name.getBytes());
+        boolean verified = nameSig.verify(login.signature);
+        Metrics.VERIFY.recordSince(started);
+        return verified;
+    }
+
+    private byte[] decrypt(byte type, byte[] sealed) throws GeneralSecurityException {
+        long started = System.nanoTime();
+        byte[] plain = this.util.decrypt(this.cipher, type, sealed);
+        Metrics.DECRYPT.recordSince(started);
+        return plain;
+    }
+
+    // Sent in the clear, there is no session key yet
+    private Protocol.Frame busy() {
+        this.state = State.REJECTED;
+        return new Protocol.Frame(Protocol.BUSY, new byte[0]);
+    }
+
+    private static void expect(Protocol.Frame request, byte type) throws ProtocolException {
+        if (request.type != type) {
+            throw new ProtocolException("Expected message type " + type + " but received " + request.type);
+        }
+    }
+
+    private Protocol.Frame status(int status) throws GeneralSecurityException {
+        return this.reply(Protocol.STATUS, new byte[] {(byte) status});
+    }
+
+    private Protocol.Frame reply(byte type, byte[] payload) throws GeneralSecurityException {
+        return new Protocol.Frame(type, this.util.encrypt(this.cipher, type, payload));
+    }
+}
@@ -0,0 +1,98 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * AES-GCM under one session key. Each direction numbers its frames from 0 and the number goes into the associated
+ * data with the version and type, so a frame that is replayed, dropped or reordered fails to open. The two
+ * directions use disjoint frame types, so a frame cannot be reflected back to its sender either. A resumed
+ * connection starts again from 0 under a key of its own, see derive().
+ */
+class SessionCipher {
+    static final String KEY_ALGORITHM = "AES";
+    static final int KEY_SIZE = 256;
+    static final int NONCE_LENGTH = 16;
+    private static final byte[] RESUME_INFO = "Vf resume".getBytes(StandardCharsets.US_ASCII);
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKey key;
+    private long sent;     // sequence of the next frame sealed here
+    private long received; // sequence the next frame from the other side must carry
+
+    SessionCipher(SecretKey keyIn) {
+        this.key = keyIn;
+    }
+
+    SecretKey getKey() {
+        return this.key;
+    }
+
+    byte[] encrypt(byte type, byte[] plain) throws GeneralSecurityException {
+        byte[] sealed = this.seal(type, this.sent, plain);
+        this.sent++;
+        return sealed;
+    }
+
+    // Throws AEADBadTagException for a frame out of sequence as well as a forged one
+    byte[] decrypt(byte type, byte[] sealed) throws GeneralSecurityException {
+        byte[] plain = this.open(type, this.received, sealed);
+        this.received++;
+        return plain;
+    }
+
+    // A message that stands alone outside any session's sequence, such as a ticket sealed under a server key
+    byte[] seal(byte type, long sequence, byte[] plain) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+        Cipher cipher = CryptoCache.sessionCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(TAG_LENGTH, iv));
+        cipher.updateAAD(associatedData(type, sequence));
+        byte[] sealed = new byte[IV_LENGTH + cipher.getOutputSize(plain.length)];
+        System.arraycopy(iv, 0, sealed, 0, IV_LENGTH);
+        cipher.doFinal(plain, 0, plain.length, sealed, IV_LENGTH);
+        return sealed;
+    }
+
+    byte[] open(byte type, long sequence, byte[] sealed) throws GeneralSecurityException {
+        if (sealed.length < IV_LENGTH + TAG_LENGTH / 8) {
+            throw new GeneralSecurityException("Encrypted message is shorter than its IV and tag");
+        }
+        Cipher cipher = CryptoCache.sessionCipher();
+        cipher.init(Cipher.DECRYPT_MODE, this.key, new GCMParameterSpec(TAG_LENGTH, sealed, 0, IV_LENGTH));
+        cipher.updateAAD(associatedData(type, sequence));
+        return cipher.doFinal(sealed, IV_LENGTH, sealed.length - IV_LENGTH);
+    }
+
+    static byte[] nonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    // The key for one resumed connection: HKDF-SHA256 (RFC 5869) of the ticket's key, salted with the nonces both
+    // sides sent for this connection. Frames sealed on an earlier connection under the ticket's key never open here,
+    // though numbering starts from 0 again.
+    static SecretKey derive(SecretKey ticketKey, byte[] clientNonce, byte[] serverNonce)
+            throws GeneralSecurityException {
+        Mac mac = CryptoCache.mac();
+        mac.init(new SecretKeySpec(ByteBuffer.allocate(clientNonce.length + serverNonce.length)
+                .put(clientNonce).put(serverNonce).array(), Receipts.MAC_ALGORITHM));
+        byte[] pseudoRandomKey = mac.doFinal(ticketKey.getEncoded());
+        mac.init(new SecretKeySpec(pseudoRandomKey, Receipts.MAC_ALGORITHM));
+        mac.update(RESUME_INFO);
+        mac.update((byte) 1);
+        return new SecretKeySpec(mac.doFinal(), 0, KEY_SIZE / 8, KEY_ALGORITHM);
+    }
+
+    private static byte[] associatedData(byte type, long sequence) {
+        return ByteBuffer.allocate(10).put(Protocol.VERSION).put(type).putLong(sequence).array();
+    }
+}
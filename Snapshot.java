@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/*
+ * Layout of the snapshot file, all integers big-endian:
+ *   magic (4) | body length (8) | CRC32C of body (4)
+ *   body: voterinfo size (8) | voterinfo modified time (8) | history offset (8) | result generation (8)
+ *         candidate count (4), per candidate: name length (2) | name | votes (8)
+ *         voter count (4), per voter: vnumber (4) | digits (1) | voted (1) | name length (2) | time length (2) | name | time
+ */
+class Snapshot {
+    static final int MAGIC = 0x56534E31; // "VSN1"
+    private static final int HEADER_LENGTH = 16;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    final VoterRegistry voters;
+    final LinkedHashMap<String, Integer> result;
+    final long historyOffset;
+    final long generation;
+
+    private Snapshot(VoterRegistry votersIn, LinkedHashMap<String, Integer> resultIn, long historyOffsetIn,
+            long generationIn) {
+        this.voters = votersIn;
+        this.result = resultIn;
+        this.historyOffset = historyOffsetIn;
+        this.generation = generationIn;
+    }
+
+    // Returns null when there is no usable snapshot, in which case the caller replays the text files
+    static Snapshot load(String fileName, String rollFile, String historyFile) throws IOException {
+        long started = System.nanoTime();
+        FileChannel file;
+        try {
+            file = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+        try (FileChannel in = file) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            if (in.size() >= HEADER_LENGTH) {
+                while (header.hasRemaining()) {
+                    in.read(header, header.position());
+                }
+            }
+            header.flip();
+            if (header.remaining() < HEADER_LENGTH || header.getInt() != MAGIC) {
+                System.out.println("Ignoring " + fileName + ", not a server snapshot");
+                return null;
+            }
+            long length = header.getLong();
+            int checksum = header.getInt();
+            if (length > Integer.MAX_VALUE || HEADER_LENGTH + length != in.size()) {
+                System.out.println("Ignoring " + fileName + ", snapshot is truncated or too large to map");
+                return null;
+            }
+            MappedByteBuffer body = in.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH, length);
+            CRC32C crc = new CRC32C();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                System.out.println("Ignoring " + fileName + ", snapshot checksum does not match");
+                return null;
+            }
+
+            long[] roll = rollStamp(rollFile);
+            long rollSize = body.getLong();
+            long rollModified = body.getLong();
+            if (rollSize != roll[0] || rollModified != roll[1]) {
+                System.out.println("Ignoring " + fileName + ", " + rollFile + " changed since the snapshot was taken");
+                return null;
+            }
+            long historyOffset = body.getLong();
+            long generation = body.getLong();
+            if (!Files.exists(Paths.get(historyFile)) || Files.size(Paths.get(historyFile)) < historyOffset) {
+                System.out.println("Ignoring " + fileName + ", " + historyFile + " is shorter than the snapshot");
+                return null;
+            }
+
+            LinkedHashMap<String, Integer> result = new LinkedHashMap<String, Integer>();
+            for (int i = body.getInt(); i > 0; i--) {
+                String candidate = readString(body, body.getShort() & 0xFFFF);
+                result.put(candidate, (int) body.getLong());
+            }
+
+            int count = body.getInt();
+            VoterRegistry voters = VoterRegistry.create(count);
+            byte[] row = new byte[0xFFFF + 10];
+            ByteBuffer rowBuffer = ByteBuffer.wrap(row);
+            for (int i = 0; i < count; i++) {
+                int vnumber = body.getInt();
+                int digits = body.get();
+                boolean voted = body.get() != 0;
+                int nameLength = body.getShort() & 0xFFFF;
+                int timeLength = body.getShort() & 0xFFFF;
+                body.get(row, 0, nameLength);
+                // The registry is fed the same bytes a voterinfo line would give it, with the vnumber zero padded back
+                for (int d = nameLength + digits - 1, v = vnumber; d >= nameLength; d--, v /= 10) {
+                    row[d] = (byte) ('0' + v % 10);
+                }
+                voters.add(rowBuffer, 0, nameLength, nameLength, nameLength + digits);
+                String voteTime = readString(body, timeLength);
+                if (voted) {
+                    Voter voter = voters.get(vnumber);
+                    voter.setVoted();
+                    voter.setVoteTime(voteTime);
+                }
+            }
+            double seconds = (System.nanoTime() - started) / 1e9;
+            System.out.printf("Loaded %d voters from %s in %.3f s%n", count, fileName, seconds);
+            return new Snapshot(voters, result, historyOffset, generation);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static long[] rollStamp(String rollFile) throws IOException {
+        Path roll = Paths.get(rollFile);
+        return new long[] {Files.size(roll), Files.getLastModifiedTime(roll).toMillis()};
+    }
+
+    // Registration numbers of every voter currently marked as voted, sorted
+    static int[] votedKeys(VoterRegistry voters) {
+        int[] keys = new int[1024];
+        int count = 0;
+        for (Voter voter : voters) {
+            if (voter.getVoted()) {
+                if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, count * 2);
+                }
+                keys[count++] = (int) VoterRegistry.parseKey(voter.getVnumber());
+            }
+        }
+        keys = Arrays.copyOf(keys, count);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    // Writes to a temporary file and moves it into place, so a crash leaves either the old or the new snapshot
+    static void write(String fileName, String rollFile, VoterRegistry voters, int[] votedKeys, long historyOffset,
+            long generation, Map<String, Integer> result) throws IOException {
+        Path temporary = Paths.get(fileName + ".tmp");
+        long[] roll = rollStamp(rollFile);
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer body = new Writer(out);
+            body.ensure(32).putLong(roll[0]).putLong(roll[1]).putLong(historyOffset).putLong(generation);
+            body.ensure(4).putInt(result.size());
+            for (Map.Entry<String, Integer> entry : result.entrySet()) {
+                byte[] candidate = bounded(entry.getKey());
+                body.ensure(10 + candidate.length).putShort((short) candidate.length).put(candidate)
+                        .putLong(entry.getValue());
+            }
+            body.ensure(4).putInt(voters.size());
+            for (Voter voter : voters) {
+                long key = VoterRegistry.parseKey(voter.getVnumber());
+                boolean voted = Arrays.binarySearch(votedKeys, (int) key) >= 0;
+                byte[] name = bounded(voter.getName());
+                byte[] time = voted ? bounded(voter.getVoteTime()) : new byte[0];
+                body.ensure(10 + name.length + time.length).putInt((int) key)
+                        .put((byte) voter.getVnumber().length()).put((byte) (voted ? 1 : 0))
+                        .putShort((short) name.length).putShort((short) time.length).put(name).put(time);
+            }
+            body.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putLong(body.length).putInt((int) body.crc.getValue()).flip();
+            while (header.hasRemaining()) {
+                out.write(header, header.position());
+            }
+            out.force(true);
+        }
+        Files.move(temporary, Paths.get(fileName), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static byte[] bounded(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return bytes.length > 0xFFFF ? Arrays.copyOf(bytes, 0xFFFF) : bytes;
+    }
+
+    // Streams the body after the header through one buffer, checksumming each block as it is written
+    private static class Writer {
+        final FileChannel out;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final CRC32C crc = new CRC32C();
+        long length;
+
+        Writer(FileChannel outIn) throws IOException {
+            this.out = outIn;
+            this.out.position(HEADER_LENGTH);
+        }
+
+        ByteBuffer ensure(int bytes) throws IOException {
+            if (this.buffer.remaining() < bytes) {
+                this.flush();
+            }
+            return this.buffer;
+        }
+
+        void flush() throws IOException {
+            this.buffer.flip();
+            this.crc.update(this.buffer.duplicate());
+            this.length += this.buffer.remaining();
+            while (this.buffer.hasRemaining()) {
+                this.out.write(this.buffer);
+            }
+            this.buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+
+/*
+ * Standby side of replication: follows a primary Vf and applies its state and batches to this process's roll,
+ * tally and journal, so the in-memory registry is already warm when it takes over. Once it has been in sync, a
+ * primary that cannot be reached for the failover timeout makes follow() return and the caller starts serving
+ * booths. Until then it keeps waiting, so a standby started before its primary never takes over on its own.
+ */
+class Standby {
+    private static final long RETRY_INTERVAL = 200;
+
+    private final String host;
+    private final int port;
+    private final KeyPair serverKeys;
+    private final VoterRegistry voters;
+    private final Tally tally;
+    private final BallotJournal journal;
+    private final int failoverTimeout;
+    private boolean synced;
+    private long lastContact;
+
+    Standby(String primary, KeyPair serverKeysIn, VoterRegistry votersIn, Tally tallyIn, BallotJournal journalIn,
+            int failoverTimeoutIn) {
+        int colon = primary.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Expected <host>:<port> for the primary but found " + primary);
+        }
+        this.host = primary.substring(0, colon);
+        this.port = Integer.parseInt(primary.substring(colon + 1));
+        this.serverKeys = serverKeysIn;
+        this.voters = votersIn;
+        this.tally = tallyIn;
+        this.journal = journalIn;
+        this.failoverTimeout = failoverTimeoutIn;
+    }
+
+    void follow() {
+        boolean reachable = true;
+        System.out.println("Standby for " + this.host + ":" + this.port + ", waiting for its state");
+        while (!this.synced || System.currentTimeMillis() - this.lastContact < this.failoverTimeout) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(this.host, this.port), this.failoverTimeout);
+                socket.setSoTimeout(this.failoverTimeout);
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                SessionCipher session = Replication.hello(out, this.serverKeys);
+                reachable = true;
+                this.stream(in, out, session);
+            } catch (IOException | GeneralSecurityException ex) {
+                if (reachable) {
+                    System.err.println("Lost primary " + this.host + ":" + this.port + ": " + ex);
+                    reachable = false;
+                }
+            } catch (IllegalStateException ex) {
+                ServerUtil.handleException(ex, "Standby does not match its primary, start it from a copy of the "
+                        + "primary's voterinfo, candidateinfo and server keys with an empty history");
+            } catch (InterruptedException ex) {
+                ServerUtil.handleException(ex, "Interrupted while following the primary");
+            }
+            try {
+                Thread.sleep(RETRY_INTERVAL);
+            } catch (InterruptedException ex) {
+                ServerUtil.handleException(ex, "Interrupted while reconnecting to the primary");
+            }
+        }
+        System.out.println("Primary unreachable for " + this.failoverTimeout + " ms, taking over");
+    }
+
+    // Applies frames as they arrive and acknowledges once nothing more is buffered, so one acknowledgement, after
+    // one wait for the local journal, covers every batch read by then
+    private void stream(DataInputStream in, DataOutputStream out, SessionCipher session)
+            throws IOException, GeneralSecurityException, InterruptedException {
+        ArrayList<Voter> caughtUp = new ArrayList<Voter>();
+        ArrayList<String> caughtUpTimes = new ArrayList<String>();
+        int stateRecords = 0;
+        boolean inState = true;
+        long primarySequence = 0;
+        long localSequence = 0;
+        while (true) {
+            Protocol.Frame frame = Replication.read(in, session);
+            this.lastContact = System.currentTimeMillis();
+            DataInputStream payload = new DataInputStream(new ByteArrayInputStream(frame.payload));
+            if (frame.type == Replication.STATE && inState) {
+                for (int i = payload.readInt(); i > 0; i--) {
+                    Voter voter = this.voter(payload.readInt());
+                    String voteTime = payload.readUTF();
+                    if (!voter.getVoted()) {
+                        caughtUp.add(voter);
+                        caughtUpTimes.add(voteTime);
+                    }
+                    stateRecords++;
+                }
+            } else if (frame.type == Replication.STATE_END && inState) {
+                primarySequence = payload.readLong();
+                localSequence = this.catchUp(payload, caughtUp, caughtUpTimes, stateRecords, localSequence);
+                System.out.println("In sync with primary at sequence " + primarySequence + ", caught up "
+                        + caughtUp.size() + " votes");
+                inState = false;
+                this.synced = true;
+            } else if (frame.type == Replication.BATCH && !inState) {
+                primarySequence = payload.readLong();
+                ArrayList<Voter> voted = new ArrayList<Voter>();
+                ArrayList<String> voteTimes = new ArrayList<String>();
+                for (int i = payload.readInt(); i > 0; i--) {
+                    String line = payload.readUTF();
+                    int space = line.indexOf(' ');
+                    Voter voter = this.voter((int) VoterRegistry.parseKey(line.substring(0, Math.max(space, 0))));
+                    if (voter.getVoted()) {
+                        throw new IllegalStateException("Voter " + voter.getVnumber() + " has already voted here");
+                    }
+                    voted.add(voter);
+                    voteTimes.add(line.substring(space + 1));
+                }
+                ArrayList<String> candidates = new ArrayList<String>();
+                for (int i = payload.readInt(); i > 0; i--) {
+                    candidates.add(payload.readUTF());
+                }
+                localSequence = this.apply(voted, voteTimes, candidates, localSequence);
+            } else if (frame.type != Replication.HEARTBEAT) {
+                throw new ProtocolException("Unexpected replication frame of type " + frame.type);
+            }
+            if (in.available() == 0) {
+                this.journal.awaitDurable(localSequence);
+                Replication.write(out, session, Replication.ACK, ByteBuffer.allocate(8).putLong(primarySequence).array());
+                out.flush();
+            }
+        }
+    }
+
+    private Voter voter(int vnumber) {
+        Voter voter = this.voters.get(vnumber);
+        if (voter == null) {
+            throw new IllegalStateException("Voter " + vnumber + " is not on this roll");
+        }
+        return voter;
+    }
+
+    // Votes the primary has and this process does not, with the missing ballots worked out from the counts. Anything
+    // here that the primary lacks means the two have diverged.
+    private long catchUp(DataInputStream payload, ArrayList<Voter> voted, ArrayList<String> voteTimes,
+            int stateRecords, long localSequence) throws IOException {
+        int localVoted = 0;
+        for (Voter voter : this.voters) {
+            if (voter.getVoted()) {
+                localVoted++;
+            }
+        }
+        if (localVoted + voted.size() != stateRecords) {
+            throw new IllegalStateException(localVoted + " voters have voted here but only "
+                    + (stateRecords - voted.size()) + " of them on the primary");
+        }
+        ArrayList<String> candidates = new ArrayList<String>();
+        for (int i = payload.readInt(); i > 0; i--) {
+            String candidate = payload.readUTF();
+            long count = payload.readLong();
+            int ordinal = this.tally.ordinal(candidate);
+            long missing = count - (ordinal < 0 ? 0 : this.tally.count(ordinal));
+            if (missing < 0 || (ordinal < 0 && count > 0)) {
+                throw new IllegalStateException("Candidate " + candidate + " has more votes here than on the primary");
+            }
+            for (long j = 0; j < missing; j++) {
+                candidates.add(candidate);
+            }
+        }
+        return this.apply(voted, voteTimes, candidates, localSequence);
+    }
+
+    private long apply(ArrayList<Voter> voted, ArrayList<String> voteTimes, ArrayList<String> candidates,
+            long localSequence) {
+        if (voted.size() != candidates.size()) {
+            throw new IllegalStateException(voted.size() + " voters to apply but " + candidates.size() + " ballots");
+        } else if (voted.isEmpty()) {
+            return localSequence;
+        }
+        int[] ordinals = new int[candidates.size()];
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = this.tally.ordinal(candidates.get(i));
+            if (ordinals[i] < 0) {
+                throw new IllegalStateException("Ballot for unknown candidate " + candidates.get(i));
+            }
+        }
+        long sequence = this.journal.replay(voted, voteTimes, candidates);
+        for (int ordinal : ordinals) {
+            this.tally.increment(ordinal);
+        }
+        return sequence;
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+class Tally {
+    static class Snapshot {
+        final long built;
+        final long[] counts;
+        final byte[] encoded;
+
+        Snapshot(long builtIn, long[] countsIn, byte[] encodedIn) {
+            this.built = builtIn;
+            this.counts = countsIn;
+            this.encoded = encodedIn;
+        }
+    }
+
+    private final String[] candidates; // candidateinfo first, then names only found in the loaded result
+    private final int votable;
+    private final LongAdder[] counts;
+    private final HashMap<String, Integer> ordinals;
+    private final long refreshInterval;
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private volatile Snapshot snapshot;
+
+    Tally(List<String> candidateList, Map<String, Integer> loaded, long refreshIntervalIn) {
+        this.refreshInterval = refreshIntervalIn;
+        ArrayList<String> names = new ArrayList<String>(candidateList);
+        this.votable = names.size();
+        // Counts for names no longer in candidateinfo are still reported, but no new ballot can be cast for them
+        for (String candidate : loaded.keySet()) {
+            if (!names.contains(candidate)) {
+                names.add(candidate);
+            }
+        }
+        this.candidates = names.toArray(new String[0]);
+        this.counts = new LongAdder[this.candidates.length];
+        this.ordinals = new HashMap<String, Integer>();
+        for (int i = 0; i < this.candidates.length; i++) {
+            this.counts[i] = new LongAdder();
+            this.counts[i].add(loaded.getOrDefault(this.candidates[i], 0));
+            this.ordinals.put(this.candidates[i], i);
+        }
+        this.snapshot = this.build(System.currentTimeMillis());
+    }
+
+    int size() {
+        return this.candidates.length;
+    }
+
+    String candidate(int ordinal) {
+        return this.candidates[ordinal];
+    }
+
+    // Every name with a count, as reported in results
+    List<String> candidates() {
+        return List.of(this.candidates);
+    }
+
+    // The names offered on the ballot, only those from candidateinfo
+    List<String> votable() {
+        return List.of(this.candidates).subList(0, this.votable);
+    }
+
+    int ordinal(String candidate) {
+        return this.ordinals.getOrDefault(candidate, -1);
+    }
+
+    boolean isCandidate(int ordinal) {
+        return ordinal >= 0 && ordinal < this.votable;
+    }
+
+    void increment(int ordinal) {
+        this.counts[ordinal].increment();
+    }
+
+    long count(int ordinal) {
+        return this.counts[ordinal].sum();
+    }
+
+    // Never blocks: a stale snapshot is returned while one caller rebuilds it
+    Snapshot snapshot() {
+        Snapshot current = this.snapshot;
+        long now = System.currentTimeMillis();
+        if (now - current.built >= this.refreshInterval && this.rebuilding.compareAndSet(false, true)) {
+            try {
+                current = this.build(now);
+                this.snapshot = current;
+            } finally {
+                this.rebuilding.set(false);
+            }
+        }
+        return current;
+    }
+
+    private Snapshot build(long now) {
+        long[] totals = new long[this.counts.length];
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = this.counts[i].sum();
+        }
+        return new Snapshot(now, totals, Protocol.encodeResult(this.candidates(), totals));
+    }
+}
@@ -0,0 +1,99 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Resumption tickets: after a full login the booth is handed its registration number and session key, sealed
+ * with AES-GCM under a key only this server holds, together with an expiry. Presenting the ticket on a new
+ * connection resumes the session with symmetric crypto alone. The ticket key lives only in memory, so tickets
+ * from before a restart no longer open and those booths fall back to a full login.
+ * Each ticket opens one session only. Resuming spends it and QUIT or LOGOUT revokes it, so a recorded RESUME
+ * cannot be presented again to replay the frames that followed it. Spent ids are kept until the ticket would have
+ * expired anyway.
+ */
+class Tickets {
+    private static final long SWEEP_INTERVAL = 1000;
+
+    static class Ticket {
+        final long id;
+        final long expiry;
+        final String vnumber;
+        final SecretKey key;
+
+        Ticket(long idIn, long expiryIn, String vnumberIn, SecretKey keyIn) {
+            this.id = idIn;
+            this.expiry = expiryIn;
+            this.vnumber = vnumberIn;
+            this.key = keyIn;
+        }
+    }
+
+    private final SessionCipher cipher;
+    private final long lifetime;
+    private final AtomicLong nextId = new AtomicLong();
+    private final ConcurrentHashMap<Long, Long> spent = new ConcurrentHashMap<Long, Long>(); // id to expiry
+    private volatile long nextSweep;
+
+    Tickets(long lifetimeIn) throws GeneralSecurityException {
+        KeyGenerator generator = KeyGenerator.getInstance(SessionCipher.KEY_ALGORITHM);
+        generator.init(SessionCipher.KEY_SIZE);
+        this.cipher = new SessionCipher(generator.generateKey());
+        this.lifetime = lifetimeIn;
+    }
+
+    Ticket create(String vnumber, SecretKey sessionKey) {
+        return new Ticket(this.nextId.getAndIncrement(), System.currentTimeMillis() + this.lifetime, vnumber,
+                sessionKey);
+    }
+
+    // expiry (8) | id (8) | key length (1) | session key | vnumber, all sealed
+    byte[] issue(Ticket ticket) throws GeneralSecurityException {
+        byte[] key = ticket.key.getEncoded();
+        byte[] vnumberBytes = ticket.vnumber.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer plain = ByteBuffer.allocate(17 + key.length + vnumberBytes.length);
+        plain.putLong(ticket.expiry).putLong(ticket.id).put((byte) key.length).put(key).put(vnumberBytes);
+        return this.cipher.seal(Protocol.RESUME, 0, plain.array());
+    }
+
+    // False when the ticket has already been used or revoked
+    boolean spend(Ticket ticket) {
+        long now = System.currentTimeMillis();
+        if (now - this.nextSweep >= 0) {
+            this.nextSweep = now + SWEEP_INTERVAL;
+            this.spent.values().removeIf(expiry -> expiry < now);
+        }
+        return this.spent.putIfAbsent(ticket.id, ticket.expiry) == null;
+    }
+
+    void revoke(Ticket ticket) {
+        this.spend(ticket);
+    }
+
+    // Null for a ticket that has expired, was not issued by this server or has been tampered with. A ticket that
+    // opens may still have been spent, see spend()
+    Ticket open(byte[] ticket) throws GeneralSecurityException {
+        byte[] plain;
+        try {
+            plain = this.cipher.open(Protocol.RESUME, 0, ticket);
+        } catch (AEADBadTagException ex) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(plain);
+        long expiry = buffer.getLong();
+        if (expiry < System.currentTimeMillis()) {
+            return null;
+        }
+        long id = buffer.getLong();
+        int keyLength = buffer.get() & 0xFF;
+        SecretKey key = new SecretKeySpec(plain, buffer.position(), keyLength, SessionCipher.KEY_ALGORITHM);
+        int vnumberStart = buffer.position() + keyLength;
+        return new Ticket(id, expiry,
+                new String(plain, vnumberStart, plain.length - vnumberStart, StandardCharsets.UTF_8), key);
+    }
+}
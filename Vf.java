@@ -1,143 +1,258 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
-import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
-import java.util.ArrayList;
 import java.util.HashMap;
-import javax.crypto.SealedObject;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class Vf {
+    private static final int BACKLOG = 4096;
+    static final int DEFAULT_WORKERS = 2048;
+
     private ServerSocket listen;
+    private SelectorServer selectorServer;
     private ServerUtil util;
     private KeyPair serverKeys;
-    private ArrayList<Voter> voters;
-    private HashMap<String, Integer> result;
+    private VoterRegistry voters;
+    private Tally tally;
+    private ExecutorService workers;
+    private Semaphore freeWorkers; // Taken before accepting a connection, given back when its session ends
+    private BallotJournal journal;
+    private Tickets tickets;
+    private Receipts receipts;
+    private Admission admission;
+    private Cluster cluster;
+    private Replication replication;
+    private Standby standby;
+    private int idleTimeout;
+    private final int portNumber;
+    private final int workerCount;
 
-    private Vf(int portNumber) {
+    Vf(int portNumberIn, int workerCountIn) {
+        this.portNumber = portNumberIn;
+        this.workerCount = workerCountIn;
         try {
-            this.listen = new ServerSocket(portNumber, 10);
-            this.listen.setSoTimeout(300000); // Set server to timeout if no input in 5 minutes
             this.util = new ServerUtil();
+            BallotJournal.recover("history", "ballots");
             this.serverKeys = this.util.getServerKeys();
-            this.voters = this.util.getVoters();
-            this.result = this.util.getResult();
+            Snapshot snapshot = this.util.getSnapshot();
+            this.voters = this.util.getVoters(snapshot);
+            String clusterFile = System.getProperty("vf.cluster");
+            if (clusterFile != null) {
+                this.cluster = new Cluster(Cluster.parse(clusterFile), Integer.getInteger("vf.node", 0),
+                        this.serverKeys, Long.getLong("vf.resultInterval", 1000));
+                this.cluster.checkRoll(this.voters);
+            }
+            HashMap<String, Integer> result = this.util.getResult(snapshot);
+            this.tally = new Tally(this.util.getCandidates(), result, Long.getLong("vf.resultInterval", 1000));
+            this.journal = new BallotJournal(result, this.voters,
+                    BallotJournal.Durability.valueOf(System.getProperty("vf.durability", "sync").toUpperCase()),
+                    Long.getLong("vf.compactInterval", 60000), Long.getLong("vf.snapshotInterval", 300000),
+                    Long.getLong("vf.commitTimeout", 10000));
+            this.idleTimeout = Integer.getInteger("vf.idleTimeout", 300000); // Close a session after 5 minutes with no input
+            this.tickets = new Tickets(Long.getLong("vf.ticketLifetime", 300000)); // Resumable for 5 minutes
+            this.receipts = new Receipts(this.serverKeys.getPrivate(), System.getProperty("vf.facility",
+                    clusterFile != null ? "node" + Integer.getInteger("vf.node", 0) : "Vf"));
+            Metrics.publish(System.getProperty("vf.metricsFile"), Long.getLong("vf.metricsInterval", 10000));
+            String primary = System.getProperty("vf.primary");
+            if (primary != null) {
+                // Follows the primary first and only opens the booth port once it takes over, see run()
+                this.standby = new Standby(primary, this.serverKeys, this.voters, this.tally, this.journal,
+                        Integer.getInteger("vf.failoverTimeout", 5000));
+            } else {
+                this.open();
+            }
+        } catch (IOException ex) {
+            ServerUtil.handleException(ex, "I/O error occurred when reading the cluster file");
+        } catch (IllegalArgumentException ex) {
+            ServerUtil.handleException(ex, "Unknown durability mode, invalid cluster file or node, "
+                    + "or primary not given as <host>:<port>");
+        } catch (GeneralSecurityException ex) {
+            ServerUtil.handleException(ex, "No such key generator or MAC algorithm for tickets or receipts");
+        }
+    }
+
+    // Starts serving booths, and standbys when a replication port is set
+    private void open() {
+        try {
+            Integer replicationPort = Integer.getInteger("vf.replicationPort");
+            if (replicationPort != null) {
+                this.replication = new Replication(replicationPort, this.serverKeys, this.journal,
+                        Integer.getInteger("vf.failoverTimeout", 5000), Integer.getInteger("vf.replicationWindow", 256));
+                this.replication.start();
+            }
+            if (this.cluster != null) {
+                this.cluster.start();
+            }
+            int cores = Runtime.getRuntime().availableProcessors();
+            int cryptoThreads = Integer.getInteger("vf.cryptoThreads", cores);
+            int cryptoQueue = Integer.getInteger("vf.cryptoQueue", 1024);
+            this.admission = new Admission(this.serverKeys.getPublic(),
+                    Double.parseDouble(System.getProperty("vf.addressRate", "100")),
+                    Double.parseDouble(System.getProperty("vf.addressBurst", "200")),
+                    Double.parseDouble(System.getProperty("vf.voterRate", "0.2")),
+                    Double.parseDouble(System.getProperty("vf.voterBurst", "5")), cryptoThreads, cryptoQueue);
+            if (System.getProperty("vf.mode", "threads").equals("nio")) {
+                this.selectorServer = new SelectorServer(this.portNumber, BACKLOG,
+                        Integer.getInteger("vf.selectors", cores), cryptoThreads, cryptoQueue, this.idleTimeout,
+                        this::newSession);
+            } else {
+                this.listen = new ServerSocket(this.portNumber, BACKLOG);
+                this.workers = Executors.newFixedThreadPool(this.workerCount);
+                this.freeWorkers = new Semaphore(this.workerCount);
+            }
         } catch (SocketException ex) {
             ServerUtil.handleException(ex, "Error in underlying protocol");
         } catch (IOException ex) {
-            ServerUtil.handleException(ex, "I/O error occurred when opening the socket");
+            ServerUtil.handleException(ex, "I/O error occurred when opening the booth or replication socket");
+        } catch (NumberFormatException ex) {
+            ServerUtil.handleException(ex, "Invalid login rate or burst, not a number");
         } catch (IllegalArgumentException ex) {
             ServerUtil.handleException(ex, "Port number is outside specified range of 0 - 65535");
         }
     }
 
-    private void run() {
-        while (true) {
-            try {
-                Socket connect = this.listen.accept();
-                ObjectOutputStream serverOut = new ObjectOutputStream(connect.getOutputStream());
-                ObjectInputStream serverIn = new ObjectInputStream(connect.getInputStream());
-                PublicKey clientKey = this.util.getClientKey();
-
-                SealedObject nameEncrypted = (SealedObject) serverIn.readObject();
-                SealedObject vnumberEncrypted = (SealedObject) serverIn.readObject();
-                byte[] nameSigBytes = new byte[256];
-                serverIn.readFully(nameSigBytes);
-
-                String name = (String) this.util.decrypt(this.serverKeys.getPrivate(), nameEncrypted);
-                String vnumber = (String) this.util.decrypt(this.serverKeys.getPrivate(), vnumberEncrypted);
-
-                Signature nameSig = Signature.getInstance("SHA256withRSA");
-                nameSig.initVerify(clientKey);
-                nameSig.update(name.getBytes());
+    private Session newSession(InetAddress peer) {
+        return new Session(this.util, this.serverKeys, this.voters, this.tally, this.journal, this.tickets,
+                this.cluster, this.receipts, this.admission, peer);
+    }
 
-                Voter current = this.voters.get(0);
-                boolean matches = false;
-                if (nameSig.verify(nameSigBytes)) {
-                    for (Voter voter : this.voters) {
-                        if (voter.getName().equals(name) && voter.getVnumber().equals(vnumber)) {
-                            current = voter;
-                            matches = true;
-                            break;
-                        }
-                    }
-                } else {
-                    System.out.println("Digital Signature did not verify correctly");
+    void run() {
+        if (this.standby != null) {
+            this.standby.follow();
+            this.open();
+        }
+        if (this.selectorServer != null) {
+            this.selectorServer.run();
+            return;
+        }
+        while (!this.listen.isClosed()) {
+            try {
+                // Nothing is accepted without a worker free to serve it, so the pool's queue stays empty and further
+                // booths wait in the listen backlog, where the OS refuses them once it is full
+                this.freeWorkers.acquire();
+                Socket connect;
+                try {
+                    connect = this.listen.accept();
+                } catch (IOException ex) {
+                    this.freeWorkers.release();
+                    throw ex;
+                }
+                Metrics.ACCEPTED.increment();
+                this.workers.execute(() -> this.serve(connect));
+            } catch (IOException ex) {
+                // Typically out of file descriptors, which frees up as sessions end, so keep accepting
+                if (!this.listen.isClosed()) {
+                    Metrics.ACCEPT_FAILED.increment();
+                    System.err.println("I/O error occurred when accepting a connection: " + ex);
                 }
+            } catch (InterruptedException ex) {
+                ServerUtil.handleException(ex, "Interrupted while waiting for a free worker");
+            }
+        }
+    }
 
-                if (matches) {
-                    serverOut.writeShort(1);
-                    serverOut.flush();
+    // Every failure here belongs to this one connection, so it is closed and counted and the facility keeps serving
+    private void serve(Socket connect) {
+        Metrics.ACTIVE_SESSIONS.increment();
+        try (Socket socket = connect) {
+            socket.setSoTimeout(this.idleTimeout);
+            DataOutputStream serverOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream serverIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
-                    Short action;
-                    do {
-                        action = serverIn.readShort();
-                        if (action == 1) {
-                            if (current.getVoted()) {
-                                serverOut.writeShort(0);
-                                serverOut.flush();
-                            } else {
-                                serverOut.writeShort(1);
-                                serverOut.flush();
-                            }
-                        } else if (action == 2) {
-                            System.out.println(2);
-                        } else if (action == 3) {
-                            System.out.println(3);
-                        }
-                    } while (action != 4);
-                } else {
-                    serverOut.writeShort(0);
+            Session session = this.newSession(socket.getInetAddress());
+            while (!session.isClosed()) {
+                Protocol.Frame request = Protocol.readFrame(serverIn);
+                Protocol.Frame reply = session.needsCrypto(request) ? this.handleCrypto(session, request)
+                        : session.handle(request);
+                if (reply != null) {
+                    Protocol.writeFrame(serverOut, reply.type, reply.payload);
+                    serverOut.flush();
                 }
+            }
+        } catch (SocketTimeoutException ex) {
+            System.out.println("Session idle for " + this.idleTimeout + " ms, closing connection");
+            Metrics.IDLE_CLOSED.increment();
+        } catch (ProtocolException ex) {
+            ServerUtil.sessionFailed(ex, "Client sent a malformed or unexpected message");
+        } catch (IOException ex) {
+            ServerUtil.sessionFailed(ex, "I/O error occurred when using connection socket");
+        } catch (GeneralSecurityException ex) {
+            ServerUtil.sessionFailed(ex, "Client message failed decryption or signature verification");
+        } catch (RuntimeException ex) {
+            ServerUtil.sessionFailed(ex, "Unexpected error while serving a session");
+        } finally {
+            Metrics.ACTIVE_SESSIONS.decrement();
+            this.freeWorkers.release();
+        }
+    }
 
-                this.util.updateResult(this.result);
-                serverOut.close();
-                serverIn.close();
-                connect.close();
-            } catch (SocketTimeoutException ex) {
-                System.out.println("No input in 5 minutes, server will now close");
-                break;
-            } catch (NullPointerException ex) {
-                ServerUtil.handleException(ex, "Input or output stream can't be null");
-            } catch (IOException ex) {
-                ServerUtil.handleException(ex, "I/O error occurred when opening, closing, or using connection socket");
-            } catch (ClassNotFoundException ex) {
-                ServerUtil.handleException(ex, "Class of a serialized object cannot be found");
-            } catch (NoSuchAlgorithmException ex) {
-                ClientUtil.handleException(ex, "No such signature algorithm");
-            } catch (InvalidKeyException ex) {
-                ServerUtil.handleException(ex, "Invalid key for signature verification");
-            } catch (SignatureException ex) {
-                ClientUtil.handleException(ex, "Signature object not initialized properly");
+    // Admission first, then RSA within the slots the crypto threads setting allows, as the nio crypto stage does
+    private Protocol.Frame handleCrypto(Session session, Protocol.Frame request)
+            throws IOException, GeneralSecurityException {
+        Protocol.Frame refused = session.admit(request);
+        if (refused != null) {
+            return refused;
+        }
+        boolean handshake = request.type == Protocol.HELLO;
+        if (!this.admission.enter(handshake)) {
+            return session.overloaded();
+        }
+        try {
+            if (handshake) {
+                Metrics.LOGINS_QUEUED.increment();
             }
+            return session.handle(request);
+        } finally {
+            this.admission.leave();
         }
     }
 
-    private void close() {
+    void close() {
         try {
-            this.listen.close();
+            if (this.replication != null) {
+                this.replication.close();
+            }
+            if (this.selectorServer != null) {
+                this.selectorServer.close();
+            } else if (this.listen != null) {
+                this.listen.close();
+                this.workers.shutdown();
+                this.workers.awaitTermination(5, TimeUnit.SECONDS);
+            }
+            this.journal.close();
         } catch (IOException ex) {
             ServerUtil.handleException(ex, "I/O error occurred when closing the socket");
+        } catch (InterruptedException ex) {
+            ServerUtil.handleException(ex, "Interrupted while waiting for open sessions to finish");
         }
     }
 
     public static void main(String[] args) {
         int portNumber = -1;
+        int workerCount = DEFAULT_WORKERS;
         try {
             portNumber = Integer.parseInt(args[0]);
+            if (args.length > 1) {
+                workerCount = Integer.parseInt(args[1]);
+            }
         } catch (NumberFormatException ex) {
-            ServerUtil.handleException(ex, "Invalid port number, not a number");
+            ServerUtil.handleException(ex, "Invalid port number or worker count, not a number");
         }
-        Vf votingFacility = new Vf(portNumber);
+        Vf votingFacility = new Vf(portNumber, workerCount);
+        Runtime.getRuntime().addShutdownHook(new Thread(votingFacility::close));
         votingFacility.run();
-        votingFacility.close();
     }
 }
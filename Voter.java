@@ -3,7 +3,7 @@ import java.time.Clock;
 public class Voter {
     private String name;
     private String vnumber;
-    private boolean voted;
+    private volatile boolean voted;
     private String voteTime;
 
     public Voter(String nameIn, String vnumberIn) {
@@ -13,6 +13,11 @@ public class Voter {
         this.voteTime = "";
     }
 
+    // For registries that keep voter fields elsewhere and override every accessor
+    protected Voter() {
+        this(null, null);
+    }
+
     public String getName() {
         return this.name;
     }
@@ -40,4 +45,13 @@ public class Voter {
     public void setVoteTime(String voteTimeIn) {
         this.voteTime = voteTimeIn;
     }
+
+    public synchronized boolean castVote() {
+        if (this.voted) {
+            return false;
+        }
+        this.setVoteTime();
+        this.voted = true;
+        return true;
+    }
 }
@@ -1,25 +1,51 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.crypto.SecretKey;
 
 public class VoterCli {
+    private static final long BUSY_WAIT = 1000;
+    private static final long MAX_BUSY_WAIT = 16000;
+
+    private String serverDomain;
+    private int portNumber;
     private Socket client;
     private ClientUtil util;
-    private KeyPair clientKeys;
+    private DataOutputStream clientOut;
+    private DataInputStream clientIn;
+    private SessionCipher session;
+    private byte[] ticket;
+
+    private VoterCli(String serverDomainIn, int portNumberIn) {
+        this.serverDomain = serverDomainIn;
+        this.portNumber = portNumberIn;
+        this.util = new ClientUtil();
+        this.connect();
+    }
 
-    private VoterCli(String serverDomain, int portNumber) {
+    private void connect() {
         try {
-            this.client = new Socket(serverDomain, portNumber);
-            this.util = new ClientUtil();
-            this.clientKeys = this.util.getClientKeys();
+            this.client = new Socket(this.serverDomain, this.portNumber);
+            this.clientOut = new DataOutputStream(new BufferedOutputStream(this.client.getOutputStream()));
+            this.clientIn = new DataInputStream(new BufferedInputStream(this.client.getInputStream()));
         } catch (UnknownHostException ex) {
             ClientUtil.handleException(ex, "IP address of the host could not be determined");
         } catch (IOException ex) {
@@ -29,50 +55,51 @@ public class VoterCli {
         }
     }
 
+    // A kiosk (-Dclient.kiosk=true) serves voter after voter over one connection until its input ends
     private void run() {
+        boolean kiosk = Boolean.getBoolean("client.kiosk");
         try {
-            ObjectOutputStream clientOut = new ObjectOutputStream(this.client.getOutputStream());
-            ObjectInputStream clientIn = new ObjectInputStream(this.client.getInputStream());
-            PublicKey serverPublicKey = this.util.getServerKey();
-
-            String name = this.util.inputName();
-            String vnumber = this.util.inputVnumber();
-
-            Signature nameSig = Signature.getInstance("SHA256withRSA");
-            nameSig.initSign(this.clientKeys.getPrivate());
-            nameSig.update(name.getBytes());
-
-            clientOut.writeObject(this.util.encrypt(serverPublicKey, name));
-            clientOut.flush();
-            clientOut.writeObject(this.util.encrypt(serverPublicKey, vnumber));
-            clientOut.flush();
-            clientOut.write(nameSig.sign());
-            clientOut.flush();
-
-            if (clientIn.readShort() == 1) {
-                Short action;
+            do {
+                String name = this.util.inputName();
+                String vnumber = name == null ? null : this.util.inputVnumber();
+                if (vnumber == null) {
+                    break;
+                }
+                this.ticket = null;
+                if (!this.startSession(name, vnumber, kiosk)) {
+                    System.out.println("Invalid name or registration number");
+                    if (kiosk) {
+                        // The server closes the connection after a refused login
+                        this.close();
+                        this.connect();
+                    }
+                    continue;
+                }
+                short action;
                 do {
                     System.out.println();
                     action = this.util.menu(name);
-                    clientOut.writeShort(action);
-                    clientOut.flush();
-                    if (action == 1) {
-                        if (clientIn.readShort() == 1) {
-                            System.out.println("You haven't voted");
-                        } else {
-                            System.out.println("You have already voted");
+                    short sent = kiosk && action == Protocol.QUIT ? Protocol.LOGOUT : action;
+                    try {
+                        this.perform(sent);
+                    } catch (ProtocolException ex) {
+                        throw ex;
+                    } catch (IOException ex) {
+                        if (action == Protocol.QUIT) {
+                            break;
                         }
-                    } else if (action == 2) {
-                        System.out.println(2);
-                    } else if (action == 3) {
-                        System.out.println(3);
-                    } else if (action == 4) {
-                        System.out.println("Voter client will now terminate");
+                        // The booth lost its connection, pick the session up again without asking the voter
+                        System.out.println("Connection to the server was lost, reconnecting");
+                        this.reconnect(name, vnumber);
+                        this.perform(sent);
                     }
-                } while (action != 4);
-            } else {
-                System.out.println("Invalid name or registration number");
+                } while (action != Protocol.QUIT);
+            } while (kiosk);
+            if (kiosk) {
+                this.leave();
             }
+        } catch (ProtocolException ex) {
+            ClientUtil.handleException(ex, "Server sent a malformed or unexpected message");
         } catch (IOException ex) {
             ClientUtil.handleException(ex, "I/O error occurred while client was running");
         } catch (NoSuchAlgorithmException ex) {
@@ -84,6 +111,194 @@ public class VoterCli {
         }
     }
 
+    // Full login: RSA wrapped session key and a signed name. In a cluster the first node may point elsewhere. A busy
+    // server is asked again after a doubling wait with jitter, so turned away booths do not all return at once
+    private boolean login(String name, String vnumber, boolean redirected)
+            throws IOException, NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        PublicKey serverPublicKey = this.util.getServerKey();
+        KeyPair clientKeys = this.util.getClientKeys(vnumber);
+
+        Signature nameSig = CryptoCache.signature();
+        nameSig.initSign(clientKeys.getPrivate());
+        nameSig.update(name.getBytes());
+        byte[] signature = nameSig.sign();
+
+        Protocol.Frame reply = this.sendLogin(serverPublicKey, name, vnumber, signature);
+        for (long wait = BUSY_WAIT; reply.type == Protocol.BUSY; wait = Math.min(wait * 2, MAX_BUSY_WAIT)) {
+            long jittered = wait / 2 + ThreadLocalRandom.current().nextLong(wait / 2 + 1);
+            System.out.println("The server is busy, trying again in " + (jittered + 999) / 1000 + " s");
+            try {
+                Thread.sleep(jittered);
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Interrupted while waiting to log in again");
+            }
+            // The server closes the connection after BUSY
+            this.close();
+            this.connect();
+            reply = this.sendLogin(serverPublicKey, name, vnumber, signature);
+        }
+        if (reply.type == Protocol.REDIRECT && !redirected) {
+            InetSocketAddress owner = Protocol.decodeRedirect(
+                    this.util.decrypt(this.session, Protocol.REDIRECT, reply.payload));
+            this.serverDomain = owner.getHostString();
+            this.portNumber = owner.getPort();
+            this.close();
+            this.connect();
+            return this.login(name, vnumber, true);
+        }
+        if (reply.type != Protocol.STATUS) {
+            throw new ProtocolException("Expected message type " + Protocol.STATUS + " but received " + reply.type);
+        }
+        return this.readAccepted(reply.payload);
+    }
+
+    // HELLO and LOGIN leave in one write, so a login costs a single round trip
+    private Protocol.Frame sendLogin(PublicKey serverPublicKey, String name, String vnumber, byte[] signature)
+            throws IOException {
+        this.session = new SessionCipher(this.util.createSessionKey());
+        Protocol.writeFrame(this.clientOut, Protocol.HELLO,
+                this.util.wrapSessionKey(serverPublicKey, this.session.getKey()));
+        Protocol.writeFrame(this.clientOut, Protocol.LOGIN, this.util.encrypt(this.session, Protocol.LOGIN,
+                Protocol.encodeLogin(name, vnumber, signature)));
+        this.clientOut.flush();
+        return Protocol.readFrame(this.clientIn);
+    }
+
+    // A kiosk connection may have been closed by the server's idle timeout while it waited for a voter
+    private boolean startSession(String name, String vnumber, boolean kiosk)
+            throws IOException, NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        try {
+            return this.login(name, vnumber, false);
+        } catch (ProtocolException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            if (!kiosk) {
+                throw ex;
+            }
+            this.close();
+            this.connect();
+            return this.login(name, vnumber, false);
+        }
+    }
+
+    // Tells the server the kiosk is closing between voters. A connection the server has already dropped is fine
+    private void leave() {
+        try {
+            Protocol.writeFrame(this.clientOut, Protocol.QUIT, new byte[0]);
+            this.clientOut.flush();
+        } catch (IOException ex) {
+            System.out.println("Connection to the server was already closed");
+        }
+        System.out.println("Voter client will now terminate");
+    }
+
+    // Presents the ticket from the last login, which needs no RSA on either side
+    private boolean resume() throws IOException {
+        SecretKey ticketKey = this.session.getKey();
+        byte[] nonce = SessionCipher.nonce();
+        Protocol.writeFrame(this.clientOut, Protocol.RESUME, Protocol.encodeResume(this.ticket,
+                this.util.encrypt(new SessionCipher(ticketKey), Protocol.RESUME, nonce)));
+        this.clientOut.flush();
+        Protocol.Frame reply = Protocol.readFrame(this.clientIn);
+        if (reply.type == Protocol.REFUSED) {
+            return false;
+        }
+        if (reply.type != Protocol.STATUS) {
+            throw new ProtocolException("Expected message type " + Protocol.STATUS + " but received " + reply.type);
+        }
+        // The connection gets its own key, so frames from the last one cannot be replayed on it
+        Protocol.Resumed resumed = Protocol.decodeResumed(reply.payload);
+        this.session = this.util.resumedSession(ticketKey, nonce, resumed.nonce);
+        return this.readAccepted(resumed.sealed);
+    }
+
+    private boolean readAccepted(byte[] sealed) throws IOException {
+        byte[] payload = this.util.decrypt(this.session, Protocol.STATUS, sealed);
+        if (payload[0] != 1) {
+            return false;
+        }
+        this.ticket = payload.length > 1 ? Arrays.copyOfRange(payload, 1, payload.length) : null;
+        return true;
+    }
+
+    private void reconnect(String name, String vnumber)
+            throws IOException, NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        this.close();
+        this.connect();
+        if (this.ticket != null && this.resume()) {
+            return;
+        }
+        // The ticket expired or the server restarted, so log in again on the same connection
+        if (!this.login(name, vnumber, false)) {
+            throw new IOException("Server refused the login after reconnecting");
+        }
+    }
+
+    private void perform(short action) throws IOException {
+        Protocol.writeFrame(this.clientOut, (byte) action, this.util.encrypt(this.session, (byte) action, new byte[0]));
+        this.clientOut.flush();
+        if (action == Protocol.VOTE) {
+            this.vote(this.clientOut, this.clientIn, this.session);
+        } else if (action == Protocol.HISTORY) {
+            this.showHistory(this.clientIn, this.session);
+        } else if (action == Protocol.RESULT) {
+            this.showResult(this.clientIn, this.session);
+        } else if (action == Protocol.QUIT) {
+            System.out.println("Voter client will now terminate");
+        } else if (action == Protocol.LOGOUT) {
+            System.out.println("Session ended, the booth is ready for the next voter");
+        }
+    }
+
+    private void vote(DataOutputStream clientOut, DataInputStream clientIn, SessionCipher session)
+            throws IOException {
+        Protocol.Frame reply = Protocol.readFrame(clientIn);
+        byte[] payload = this.util.decrypt(session, reply.type, reply.payload);
+        if (reply.type != Protocol.CANDIDATES) {
+            System.out.println("You have already voted");
+            return;
+        }
+
+        int choice = this.util.inputCandidate(Protocol.decodeStrings(payload));
+        Protocol.writeFrame(clientOut, Protocol.BALLOT,
+                this.util.encrypt(session, Protocol.BALLOT, ByteBuffer.allocate(4).putInt(choice).array()));
+        clientOut.flush();
+        byte status = this.readStatus(clientIn, session);
+        if (status == 1) {
+            System.out.println("Your vote has been recorded");
+        } else if (status == 2) {
+            System.out.println("Your vote was received but could not be confirmed, please tell a poll worker");
+        } else {
+            System.out.println("You have already voted");
+        }
+    }
+
+    private void showResult(DataInputStream clientIn, SessionCipher session) throws IOException {
+        Protocol.Frame reply = Protocol.readFrame(clientIn, Protocol.RESULTS);
+        Map<String, Long> result = Protocol.decodeResult(this.util.decrypt(session, Protocol.RESULTS, reply.payload));
+        System.out.println("    Election Result");
+        for (Map.Entry<String, Long> candidate : result.entrySet()) {
+            System.out.println(candidate.getKey() + ": " + candidate.getValue());
+        }
+    }
+
+    private void showHistory(DataInputStream clientIn, SessionCipher session) throws IOException {
+        Protocol.Frame reply = Protocol.readFrame(clientIn, Protocol.RECORD);
+        List<String> record = Protocol.decodeStrings(this.util.decrypt(session, Protocol.RECORD, reply.payload));
+        if (record.size() < 3) {
+            System.out.println("You have not voted yet");
+            return;
+        }
+        System.out.println("    My Vote History");
+        System.out.println("Voted at " + record.get(0) + " at facility " + record.get(1));
+        System.out.println("Receipt: " + record.get(2));
+    }
+
+    private byte readStatus(DataInputStream clientIn, SessionCipher session) throws IOException {
+        Protocol.Frame status = Protocol.readFrame(clientIn, Protocol.STATUS);
+        return this.util.decrypt(session, Protocol.STATUS, status.payload)[0];
+    }
+
     private void close() {
         try {
             this.client.close();
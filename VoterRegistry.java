@@ -0,0 +1,58 @@
+import java.nio.ByteBuffer;
+
+interface VoterRegistry extends Iterable<Voter> {
+    long NO_KEY = Long.MIN_VALUE;
+
+    static VoterRegistry create(int expectedSize) {
+        String storage = System.getProperty("vf.registry", "heap");
+        if (storage.equals("columnar")) {
+            return new ColumnarVoterRegistry(expectedSize, false);
+        } else if (storage.equals("offheap")) {
+            return new ColumnarVoterRegistry(expectedSize, true);
+        }
+        return new HeapVoterRegistry(expectedSize);
+    }
+
+    static long parseKey(String vnumber) {
+        if (vnumber == null || vnumber.isEmpty() || vnumber.length() > 10) {
+            return NO_KEY;
+        }
+        long key = 0;
+        for (int i = 0; i < vnumber.length(); i++) {
+            char digit = vnumber.charAt(i);
+            if (digit < '0' || digit > '9') {
+                return NO_KEY;
+            }
+            key = key * 10 + (digit - '0');
+        }
+        return key > Integer.MAX_VALUE ? NO_KEY : key;
+    }
+
+    static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    boolean add(String name, String vnumber);
+
+    // Fields of one voterinfo line, read in place from a buffer that may be a mapping of the file
+    boolean add(ByteBuffer data, int nameStart, int nameEnd, int vnumberStart, int vnumberEnd);
+
+    Voter get(int vnumber);
+
+    int size();
+
+    default Voter get(String vnumber) {
+        long key = parseKey(vnumber);
+        if (key == NO_KEY) {
+            return null;
+        }
+        Voter voter = this.get((int) key);
+        return voter != null && voter.getVnumber().equals(vnumber) ? voter : null;
+    }
+
+    default Voter authenticate(String name, String vnumber) {
+        Voter voter = this.get(vnumber);
+        return voter != null && voter.getName().equals(name) ? voter : null;
+    }
+}
@@ -0,0 +1,30 @@
+import benchmarks.JournalBenchmark;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class JournalFixture implements JournalBenchmark.Fixture {
+    private final AtomicInteger sequence = new AtomicInteger(100000000);
+    private BallotJournal journal;
+
+    public void setUp(String durability) throws Exception {
+        // Snapshots stamp themselves with the voter roll, so there has to be one
+        Files.write(Paths.get("voterinfo"), new byte[0]);
+        HashMap<String, Integer> result = new HashMap<String, Integer>();
+        result.put("Tim", 0);
+        result.put("Linda", 0);
+        this.journal = new BallotJournal(result, VoterRegistry.create(0),
+                BallotJournal.Durability.valueOf(durability), 60000, 0, 10000);
+    }
+
+    // Every call is a new voter, as each voter can only cast one ballot
+    public boolean castVote() {
+        Voter voter = new Voter("voter", Integer.toString(this.sequence.incrementAndGet()));
+        return this.journal.castVote(voter, "Tim") == BallotJournal.Outcome.CAST;
+    }
+
+    public void tearDown() {
+        this.journal.close();
+    }
+}
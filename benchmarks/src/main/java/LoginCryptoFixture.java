@@ -0,0 +1,42 @@
+import benchmarks.LoginCryptoBenchmark;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+public class LoginCryptoFixture implements LoginCryptoBenchmark.Fixture {
+    private final ServerUtil server = new ServerUtil();
+    private final ClientUtil client = new ClientUtil();
+    private KeyPair serverKeys;
+    private KeyPair clientKeys;
+    private byte[] name;
+    private byte[] signature;
+    private byte[] wrappedKey;
+
+    public void setUp() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        this.serverKeys = generator.generateKeyPair();
+        this.clientKeys = generator.generateKeyPair();
+        this.name = "voter".getBytes(StandardCharsets.UTF_8);
+
+        Signature signer = CryptoCache.signature();
+        signer.initSign(this.clientKeys.getPrivate());
+        signer.update(this.name);
+        this.signature = signer.sign();
+        this.wrappedKey = this.client.wrapSessionKey(this.serverKeys.getPublic(), this.client.createSessionKey());
+    }
+
+    // Same steps as Session.verify
+    public boolean verifySignature() throws GeneralSecurityException {
+        Signature nameSig = CryptoCache.signature();
+        nameSig.initVerify(this.clientKeys.getPublic());
+        nameSig.update(this.name);
+        return nameSig.verify(this.signature);
+    }
+
+    public Object unwrapSessionKey() throws GeneralSecurityException {
+        return this.server.unwrapSessionKey(this.serverKeys.getPrivate(), this.wrappedKey);
+    }
+}
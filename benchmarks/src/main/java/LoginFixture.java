@@ -0,0 +1,106 @@
+import benchmarks.LoginBenchmark;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class LoginFixture implements LoginBenchmark.Fixture {
+    private static final int VOTERS = 1000;
+    private static final long START_TIMEOUT = 60000;
+
+    private final ClientUtil client = new ClientUtil();
+    private final String[] names = new String[VOTERS];
+    private final String[] vnumbers = new String[VOTERS];
+    private final byte[][] signatures = new byte[VOTERS][];
+    private volatile PublicKey serverKey;
+    private Vf server;
+    private int port;
+
+    public void startServer(String mode) throws IOException, GeneralSecurityException {
+        StringBuilder roll = new StringBuilder();
+        for (int i = 0; i < VOTERS; i++) {
+            this.names[i] = "voter" + i;
+            this.vnumbers[i] = Integer.toString(100000000 + i);
+            roll.append(this.names[i]).append(' ').append(this.vnumbers[i]).append('\n');
+        }
+        Files.write(Paths.get("voterinfo"), roll.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(Paths.get("candidateinfo"), "Tim\nLinda\n".getBytes(StandardCharsets.UTF_8));
+
+        // Without a keys/ directory every voter signs with the booth's shared client pair, created here if missing
+        KeyPair clientKeys = this.client.getClientKeys(this.vnumbers[0]);
+        for (int i = 0; i < VOTERS; i++) {
+            Signature nameSig = CryptoCache.signature();
+            nameSig.initSign(clientKeys.getPrivate());
+            nameSig.update(this.names[i].getBytes());
+            this.signatures[i] = nameSig.sign();
+        }
+
+        try (ServerSocket probe = new ServerSocket(0)) {
+            this.port = probe.getLocalPort();
+        }
+        System.setProperty("vf.mode", mode);
+        this.server = new Vf(this.port, Vf.DEFAULT_WORKERS);
+        Thread serving = new Thread(this.server::run, "vf");
+        serving.setDaemon(true);
+        serving.start();
+    }
+
+    public void stopServer() {
+        this.server.close();
+    }
+
+    public boolean login() throws IOException {
+        int voter = ThreadLocalRandom.current().nextInt(VOTERS);
+        try (Socket socket = this.connect()) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            SessionCipher session = new SessionCipher(this.client.createSessionKey());
+            Protocol.writeFrame(out, Protocol.HELLO, this.client.wrapSessionKey(this.serverKey, session.getKey()));
+            Protocol.writeFrame(out, Protocol.LOGIN, this.client.encrypt(session, Protocol.LOGIN,
+                    Protocol.encodeLogin(this.names[voter], this.vnumbers[voter], this.signatures[voter])));
+            out.flush();
+            Protocol.Frame status = Protocol.readFrame(in, Protocol.STATUS);
+            boolean accepted = this.client.decrypt(session, Protocol.STATUS, status.payload)[0] == 1;
+            if (accepted) {
+                Protocol.writeFrame(out, Protocol.QUIT, this.client.encrypt(session, Protocol.QUIT, new byte[0]));
+                out.flush();
+            }
+            return accepted;
+        }
+    }
+
+    // Probing with an empty connection would count as a failed session, so wait for Vf by retrying the first real login
+    private Socket connect() throws IOException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (true) {
+            try {
+                Socket socket = new Socket("localhost", this.port);
+                if (this.serverKey == null) {
+                    this.serverKey = this.client.getServerKey();
+                }
+                return socket;
+            } catch (ConnectException ex) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw ex;
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException interrupted) {
+                    throw new IOException(interrupted);
+                }
+            }
+        }
+    }
+}
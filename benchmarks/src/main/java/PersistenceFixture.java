@@ -0,0 +1,44 @@
+import benchmarks.PersistenceBenchmark;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+
+// The server's original persistence, reopening history or rewriting result on every vote, which the ballot journal
+// replaced. It lives on here only as the baseline JournalBenchmark is compared against.
+public class PersistenceFixture implements PersistenceBenchmark.Fixture {
+    private Voter voter;
+    private HashMap<String, Integer> result;
+
+    public void setUp() {
+        this.voter = new Voter("voter", "100000000");
+        this.voter.setVoteTime();
+        this.result = new HashMap<String, Integer>();
+        this.result.put("Tim", 0);
+        this.result.put("Linda", 0);
+    }
+
+    public synchronized void updateHistory() {
+        try (BufferedWriter historyFile = new BufferedWriter(new FileWriter("history", true))) {
+            historyFile.write(this.voter.getVnumber() + " " + this.voter.getVoteTime());
+            historyFile.newLine();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    public void updateResult() {
+        synchronized (this.result) {
+            this.result.merge("Tim", 1, Integer::sum);
+            try (BufferedWriter resultFile = new BufferedWriter(new FileWriter("result"))) {
+                for (String candidate : this.result.keySet()) {
+                    resultFile.write(candidate + " " + this.result.get(candidate));
+                    resultFile.newLine();
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+import benchmarks.RegistryBenchmark;
+import java.util.Random;
+
+public class RegistryFixture implements RegistryBenchmark.Fixture {
+    private VoterRegistry voters;
+    private String[] names;
+    private String[] vnumbers;
+    private int[] order;
+    private int next;
+
+    public void setUp(String storage, int count) {
+        System.setProperty("vf.registry", storage);
+        this.voters = VoterRegistry.create(count);
+        this.names = new String[count];
+        this.vnumbers = new String[count];
+        this.order = new int[count];
+        for (int i = 0; i < count; i++) {
+            this.names[i] = "voter" + i;
+            this.vnumbers[i] = Integer.toString(100000000 + i);
+            this.voters.add(this.names[i], this.vnumbers[i]);
+            this.order[i] = i;
+        }
+        Random random = new Random(count);
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = this.order[i];
+            this.order[i] = this.order[j];
+            this.order[j] = swap;
+        }
+    }
+
+    public Object authenticate() {
+        int voter = this.order[this.next];
+        this.next = this.next + 1 == this.order.length ? 0 : this.next + 1;
+        return this.voters.authenticate(this.names[voter], this.vnumbers[voter]);
+    }
+}
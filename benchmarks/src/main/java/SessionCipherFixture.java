@@ -0,0 +1,26 @@
+import benchmarks.SessionCipherBenchmark;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+public class SessionCipherFixture implements SessionCipherBenchmark.Fixture {
+    private final ClientUtil client = new ClientUtil();
+    private SessionCipher session;
+    private byte[] plain;
+    private byte[] sealed;
+
+    public void setUp(int payloadSize) {
+        this.session = new SessionCipher(this.client.createSessionKey());
+        this.plain = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(this.plain);
+        this.sealed = this.client.encrypt(new SessionCipher(this.session.getKey()), Protocol.RESULTS, this.plain);
+    }
+
+    // Opens the same frame every time, so it is opened at its own sequence rather than the session's next one
+    public byte[] serverDecrypt() throws GeneralSecurityException {
+        return this.session.open(Protocol.RESULTS, 0, this.sealed);
+    }
+
+    public byte[] clientEncrypt() {
+        return this.client.encrypt(this.session, Protocol.RESULTS, this.plain);
+    }
+}
@@ -0,0 +1,38 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/*
+ * The booth classes are package-private members of the default package, which a named package cannot refer to.
+ * Each benchmark declares what it measures as a Fixture interface, a default-package class in this module
+ * implements it against the real classes, and it is instantiated here by name.
+ */
+final class Fixtures {
+    private static final String MARKER = ".benchmark";
+    private static final String[] STATE_FILES = {
+        "history", "ballots", "result", "result.tmp", "snapshot", "snapshot.tmp", "voterinfo", "candidateinfo",
+        "server_public.key", "server_private.key", "client_public.key", "client_private.key"
+    };
+
+    private Fixtures() {}
+
+    static <T> T load(Class<T> api, String className) throws ReflectiveOperationException {
+        return api.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+    }
+
+    // Benchmarks that write the booth's files do so in the working directory, so refuse to touch a real election
+    static void scratchDirectory() throws IOException {
+        Path marker = Paths.get(MARKER);
+        if (!Files.exists(marker) && Files.exists(Paths.get("voterinfo"))) {
+            throw new IllegalStateException("Run the file benchmarks from an empty scratch directory, found voterinfo in "
+                    + Paths.get("").toAbsolutePath());
+        }
+        Files.write(marker, new byte[0]);
+        for (String fileName : STATE_FILES) {
+            Files.deleteIfExists(Paths.get(fileName));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Votes recorded through the group-committed ballot journal by concurrent sessions
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+public class JournalBenchmark {
+    public interface Fixture {
+        void setUp(String durability) throws Exception;
+
+        boolean castVote();
+
+        void tearDown();
+    }
+
+    @Param({"SYNC", "ASYNC", "NONE"})
+    public String durability;
+
+    private Fixture fixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        Fixtures.scratchDirectory();
+        this.fixture = Fixtures.load(Fixture.class, "JournalFixture");
+        this.fixture.setUp(this.durability);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.fixture.tearDown();
+        Fixtures.scratchDirectory();
+    }
+
+    @Benchmark
+    public boolean castVote() {
+        return this.fixture.castVote();
+    }
+}
@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Complete logins against an in-process Vf over loopback: connect, key exchange, signed login, status, quit.
+ * The client's signatures are computed up front, so the time is the server's work plus the network round trips.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoginBenchmark {
+    public interface Fixture {
+        void startServer(String mode) throws Exception;
+
+        boolean login() throws Exception;
+
+        void stopServer();
+    }
+
+    @Param({"threads", "nio"})
+    public String mode;
+
+    private Fixture fixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        Fixtures.scratchDirectory();
+        this.fixture = Fixtures.load(Fixture.class, "LoginFixture");
+        this.fixture.startServer(this.mode);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.fixture.stopServer();
+        Fixtures.scratchDirectory();
+    }
+
+    @Benchmark
+    public boolean login() throws Exception {
+        return this.fixture.login();
+    }
+}
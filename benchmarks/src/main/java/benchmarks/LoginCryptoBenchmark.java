@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The two RSA private/public key operations the server does for every login
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoginCryptoBenchmark {
+    public interface Fixture {
+        void setUp() throws Exception;
+
+        boolean verifySignature() throws Exception;
+
+        Object unwrapSessionKey() throws Exception;
+    }
+
+    private Fixture fixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.fixture = Fixtures.load(Fixture.class, "LoginCryptoFixture");
+        this.fixture.setUp();
+    }
+
+    @Benchmark
+    public boolean verifySignature() throws Exception {
+        return this.fixture.verifySignature();
+    }
+
+    @Benchmark
+    public Object unwrapSessionKey() throws Exception {
+        return this.fixture.unwrapSessionKey();
+    }
+}
@@ -0,0 +1,55 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The server's original file-per-call history and result writes, kept in the fixture as the ballot journal's baseline
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+    public interface Fixture {
+        void setUp();
+
+        void updateHistory();
+
+        void updateResult();
+    }
+
+    private Fixture fixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        Fixtures.scratchDirectory();
+        this.fixture = Fixtures.load(Fixture.class, "PersistenceFixture");
+        this.fixture.setUp();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Fixtures.scratchDirectory();
+    }
+
+    @Benchmark
+    public void updateHistory() {
+        this.fixture.updateHistory();
+    }
+
+    @Benchmark
+    public void updateResult() {
+        this.fixture.updateResult();
+    }
+}
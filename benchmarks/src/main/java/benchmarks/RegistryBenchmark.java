@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Login lookups against a voter roll of the size getVoters() loads, in random order
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RegistryBenchmark {
+    public interface Fixture {
+        void setUp(String storage, int voters);
+
+        Object authenticate();
+    }
+
+    @Param({"heap", "columnar", "offheap"})
+    public String storage;
+
+    @Param({"100000", "1000000"})
+    public int voters;
+
+    private Fixture fixture;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        this.fixture = Fixtures.load(Fixture.class, "RegistryFixture");
+        this.fixture.setUp(this.storage, this.voters);
+    }
+
+    @Benchmark
+    public Object authenticate() {
+        return this.fixture.authenticate();
+    }
+}
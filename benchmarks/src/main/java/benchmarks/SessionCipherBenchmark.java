@@ -0,0 +1,52 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// AES-GCM sealing of session messages as done by ServerUtil.decrypt and ClientUtil.encrypt
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionCipherBenchmark {
+    public interface Fixture {
+        void setUp(int payloadSize);
+
+        byte[] serverDecrypt() throws Exception;
+
+        byte[] clientEncrypt();
+    }
+
+    @Param({"16", "1024", "16000"})
+    public int payloadSize;
+
+    private Fixture fixture;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        this.fixture = Fixtures.load(Fixture.class, "SessionCipherFixture");
+        this.fixture.setUp(this.payloadSize);
+    }
+
+    @Benchmark
+    public byte[] serverDecrypt() throws Exception {
+        return this.fixture.serverDecrypt();
+    }
+
+    @Benchmark
+    public byte[] clientEncrypt() {
+        return this.fixture.clientEncrypt();
+    }
+}